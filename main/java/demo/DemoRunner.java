@@ -1,14 +1,7 @@
 package demo;
 
-import demo.blocking.Consumer;
-import demo.blocking.Producer;
-import queue.MostRecentlyInsertedBlockingQueue;
 import queue.MostRecentlyInsertedQueue;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
 public class DemoRunner {
     public static void main(String[] args) throws InterruptedException {
 //        new DemoRunner().blockingDemo();
@@ -47,17 +40,12 @@ public class DemoRunner {
     }
 
     /*
-    Consumer is blocked at the start, waiting for elements.
-    When 0 element comes, consumer takes it.
-    Then some elements are dropped because producer produces faster than consumer processes.
+    Producer offers 2 elements per second, consumer needs a second for each,
+    so about half of the elements are dropped. See LoadGenerator for other loads.
      */
     void blockingDemo() throws InterruptedException {
-        MostRecentlyInsertedBlockingQueue blockingQueue = new MostRecentlyInsertedBlockingQueue(3);
-        ExecutorService exec = Executors.newCachedThreadPool();
-        exec.execute(new Producer(blockingQueue));
-        exec.execute(new Consumer(blockingQueue));
-        TimeUnit.SECONDS.sleep(15);
-        exec.shutdownNow();
+        LoadGenerator.main(new String[]{"--capacity", "3", "--rate", "2", "--service-us", "1000000",
+                "--payload", "0", "--warmup", "0", "--seconds", "15"});
     }
 
 }
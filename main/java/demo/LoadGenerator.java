@@ -0,0 +1,233 @@
+package demo;
+
+import queue.ConcurrentMostRecentlyInsertedQueue;
+import queue.LatencyHistogram;
+import queue.MostRecentlyInsertedBlockingQueue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Load generator for capacity planning. Producers offer at a fixed total rate on a schedule that does not depend
+on how the queue keeps up (open loop), consumers take and spend a fixed service time on every element.
+Latency is measured from the time an element was scheduled to be offered, not from when the producer got to it,
+so stalls of producers count against latency instead of hiding it (coordinated omission correction).
+The uncorrected latency, from the actual offer, is reported next to it.
+Reports throughput, drop rate (elements evicted before any consumer took them) and latency percentiles
+every second and for the whole run after warmup.
+
+Arguments, all optional, as --name value:
+    --queue         blocking | concurrent, concurrent consumers poll and back off when empty
+    --producers     producer threads
+    --consumers     consumer threads
+    --rate          total offers per second, 0 to offer as fast as possible
+    --service-us    consumer work per element in microseconds, busy spinning
+    --payload       bytes allocated per element
+    --capacity      queue capacity
+    --warmup        seconds before measurement starts
+    --seconds       measured seconds
+ */
+public class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("queue", "blocking");
+        DEFAULTS.put("producers", "1");
+        DEFAULTS.put("consumers", "1");
+        DEFAULTS.put("rate", "100000");
+        DEFAULTS.put("service-us", "5");
+        DEFAULTS.put("payload", "64");
+        DEFAULTS.put("capacity", "1024");
+        DEFAULTS.put("warmup", "2");
+        DEFAULTS.put("seconds", "10");
+    }
+
+    private final Queue<Message> queue;
+
+    private final int producers;
+
+    private final int consumers;
+
+    private final long rate;
+
+    private final long serviceNanos;
+
+    private final int payload;
+
+    private final int warmupSeconds;
+
+    private final int seconds;
+
+    private final LongAdder offered = new LongAdder();
+
+    private final LongAdder consumed = new LongAdder();
+
+    private final LatencyHistogram corrected = new LatencyHistogram();
+
+    private final LatencyHistogram uncorrected = new LatencyHistogram();
+
+    private static final class Message {
+
+        /**
+         * When the schedule wanted this element offered
+         */
+        final long intendedNanos;
+
+        final long offeredNanos;
+
+        final byte[] payload;
+
+        Message(long intendedNanos, long offeredNanos, byte[] payload) {
+            this.intendedNanos = intendedNanos;
+            this.offeredNanos = offeredNanos;
+            this.payload = payload;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+            if (!DEFAULTS.containsKey(name) || i + 1 == args.length) {
+                System.err.println("Unknown or incomplete option " + args[i] + ", options and defaults: " + DEFAULTS);
+                return;
+            }
+            options.put(name, args[i + 1]);
+        }
+        System.out.println(options);
+        new LoadGenerator(options).run();
+    }
+
+    LoadGenerator(Map<String, String> options) {
+        int capacity = Integer.parseInt(options.get("capacity"));
+        switch (options.get("queue")) {
+            case "blocking":
+                queue = new MostRecentlyInsertedBlockingQueue<>(capacity);
+                break;
+            case "concurrent":
+                queue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown queue " + options.get("queue"));
+        }
+        producers = Integer.parseInt(options.get("producers"));
+        consumers = Integer.parseInt(options.get("consumers"));
+        rate = Long.parseLong(options.get("rate"));
+        serviceNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(options.get("service-us")));
+        payload = Integer.parseInt(options.get("payload"));
+        warmupSeconds = Integer.parseInt(options.get("warmup"));
+        seconds = Integer.parseInt(options.get("seconds"));
+        if (producers <= 0 || consumers <= 0 || rate < 0 || payload < 0 || seconds <= 0) {
+            throw new IllegalArgumentException("Thread counts and duration should be positive, rate and payload not negative");
+        }
+    }
+
+    void run() throws InterruptedException {
+        ThreadHarness harness = new ThreadHarness()
+                .add(producers, "producer", i -> produce())
+                .add(consumers, "consumer", i -> consume());
+        harness.start();
+
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        corrected.reset();
+        uncorrected.reset();
+        long offeredBefore = offered.sum();
+        long consumedBefore = consumed.sum();
+        long queuedBefore = queue.size();
+        long lastOffered = offeredBefore;
+        long lastConsumed = consumedBefore;
+        for (int second = 1; second <= seconds; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            long offeredNow = offered.sum();
+            long consumedNow = consumed.sum();
+            System.out.printf("%3ds  offered %,10d/s  consumed %,10d/s  queued %,8d  latency %s%n", second,
+                    offeredNow - lastOffered, consumedNow - lastConsumed, queue.size(), corrected);
+            lastOffered = offeredNow;
+            lastConsumed = consumedNow;
+        }
+        harness.stop();
+
+        long totalOffered = offered.sum() - offeredBefore;
+        long totalConsumed = consumed.sum() - consumedBefore;
+        // elements queued at the start can be consumed during the run, those at the end were not dropped yet
+        long dropped = Math.max(0, totalOffered + queuedBefore - totalConsumed - queue.size());
+        System.out.printf("offered   %,d/s%n", totalOffered / seconds);
+        System.out.printf("consumed  %,d/s%n", totalConsumed / seconds);
+        System.out.printf("dropped   %,d/s (%.3f%%)%n", dropped / seconds,
+                totalOffered == 0 ? 0.0 : 100.0 * dropped / totalOffered);
+        System.out.println("latency from intended offer " + corrected);
+        System.out.println("latency from actual offer   " + uncorrected);
+    }
+
+    private void produce() {
+        long interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(producers) / rate;
+        long next = System.nanoTime();
+        while (ThreadHarness.running()) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (now < next) {
+                    waitUntil(next);
+                    now = System.nanoTime();
+                }
+            } else {
+                next = now;
+            }
+            // when behind schedule the backlog is offered right away, each element keeps its intended time
+            queue.offer(new Message(next, now, new byte[payload]));
+            offered.increment();
+            next += interval;
+        }
+    }
+
+    private void consume() throws InterruptedException {
+        @SuppressWarnings("unchecked")
+        BlockingQueue<Message> blocking = queue instanceof BlockingQueue ? (BlockingQueue<Message>) queue : null;
+        long backoff = 1;
+        while (ThreadHarness.running()) {
+            Message message;
+            if (blocking != null) {
+                message = blocking.take();
+            } else {
+                message = queue.poll();
+                if (message == null) {
+                    LockSupport.parkNanos(backoff);
+                    backoff = Math.min(backoff * 2, TimeUnit.MICROSECONDS.toNanos(100));
+                    continue;
+                }
+                backoff = 1;
+            }
+            long now = System.nanoTime();
+            corrected.record(now - message.intendedNanos);
+            uncorrected.record(now - message.offeredNanos);
+            serve(message);
+            consumed.increment();
+        }
+    }
+
+    private void serve(Message message) {
+        long until = System.nanoTime() + serviceNanos;
+        int checksum = message.payload.length;
+        while (System.nanoTime() < until)
+            checksum++;
+        if (checksum == 42)
+            Thread.yield();
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            // parking overshoots by tens of microseconds, yield the rest
+            if (remaining > TimeUnit.MICROSECONDS.toNanos(100))
+                LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+            else
+                Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+Thread harness shared by the benchmarks and stress tools: threads added with add are started together,
+released at once by a latch so none gets a head start, and stopped by interrupting and joining them.
+Bodies loop while running() and may let InterruptedException out, both count as finished.
+ */
+public final class ThreadHarness {
+
+    public interface Body {
+        void run(int index) throws InterruptedException;
+    }
+
+    private final CountDownLatch start = new CountDownLatch(1);
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    /*
+    Adds count threads named name-index, each running body with its index
+     */
+    public ThreadHarness add(int count, String name, Body body) {
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(index);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }, name + "-" + i));
+        }
+        return this;
+    }
+
+    public void start() {
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+    }
+
+    public void stop() throws InterruptedException {
+        for (Thread thread : threads)
+            thread.interrupt();
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    /*
+    Starts all threads, lets them run for seconds, then stops them
+     */
+    public void run(int seconds) throws InterruptedException {
+        start();
+        TimeUnit.SECONDS.sleep(seconds);
+        stop();
+    }
+
+    /*
+    Loop condition for bodies: false once the harness stops the calling thread
+     */
+    public static boolean running() {
+        return !Thread.currentThread().isInterrupted();
+    }
+}
@@ -0,0 +1,61 @@
+package demo.blocking;
+
+import demo.ThreadHarness;
+import queue.MostRecentlyInsertedBlockingQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Throughput of the blocking queue with 1 producer / 1 consumer and N producers / M consumers,
+each case also with a monitoring thread polling size().
+Cache behaviour is compared by running it under perf against builds with and without field padding, e.g.
+
+    perf stat -e cache-misses,cache-references,L1-dcache-load-misses java -cp out demo.blocking.FalseSharingBenchmark
+
+Arguments: producers consumers seconds
+ */
+public class FalseSharingBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        run(1, 1, false, seconds);
+        run(1, 1, true, seconds);
+        run(producers, consumers, false, seconds);
+        run(producers, consumers, true, seconds);
+    }
+
+    private static void run(int producers, int consumers, boolean monitor, int seconds) throws InterruptedException {
+        MostRecentlyInsertedBlockingQueue<Integer> queue = new MostRecentlyInsertedBlockingQueue<>(1024);
+        LongAdder offered = new LongAdder();
+        LongAdder taken = new LongAdder();
+        LongAdder sizeReads = new LongAdder();
+        new ThreadHarness()
+                .add(producers, "producer", i -> {
+                    Integer element = 42;
+                    while (ThreadHarness.running()) {
+                        queue.offer(element);
+                        offered.increment();
+                    }
+                })
+                .add(consumers, "consumer", i -> {
+                    while (true) {
+                        if (queue.poll(1, TimeUnit.MILLISECONDS) != null)
+                            taken.increment();
+                    }
+                })
+                .add(monitor ? 1 : 0, "monitor", i -> {
+                    while (ThreadHarness.running()) {
+                        queue.size();
+                        sizeReads.increment();
+                    }
+                })
+                .run(seconds);
+        System.out.printf("%dP%dC%s  offers %,d/s  takes %,d/s  size() %,d/s%n",
+                producers, consumers, monitor ? "+monitor" : "        ",
+                offered.sum() / seconds, taken.sum() / seconds, sizeReads.sum() / seconds);
+    }
+}
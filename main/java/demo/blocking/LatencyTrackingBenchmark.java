@@ -0,0 +1,52 @@
+package demo.blocking;
+
+import demo.ThreadHarness;
+import queue.MostRecentlyInsertedBlockingQueue;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Cost of latency tracking: producers and consumers with tracking disabled and enabled,
+then the recorded residence and eviction age percentiles.
+
+Arguments: producers consumers capacity seconds
+ */
+public class LatencyTrackingBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        run("untracked", new MostRecentlyInsertedBlockingQueue<>(capacity), producers, consumers, seconds);
+        MostRecentlyInsertedBlockingQueue<Integer> tracked = new MostRecentlyInsertedBlockingQueue<>(capacity);
+        tracked.enableLatencyTracking();
+        run("tracked", tracked, producers, consumers, seconds);
+        System.out.println("residence    " + tracked.residenceTimes());
+        System.out.println("eviction age " + tracked.evictionAges());
+    }
+
+    private static void run(String name, MostRecentlyInsertedBlockingQueue<Integer> queue,
+                            int producers, int consumers, int seconds) throws InterruptedException {
+        LongAdder offers = new LongAdder();
+        LongAdder takes = new LongAdder();
+        new ThreadHarness()
+                .add(producers, "producer", i -> {
+                    Integer element = 42;
+                    while (ThreadHarness.running()) {
+                        queue.offer(element);
+                        offers.increment();
+                    }
+                })
+                .add(consumers, "consumer", i -> {
+                    while (true) {
+                        queue.take();
+                        takes.increment();
+                    }
+                })
+                .run(seconds);
+        System.out.printf("%-10s %dP%dC  offers %,d/s  takes %,d/s%n",
+                name, producers, consumers, offers.sum() / seconds, takes.sum() / seconds);
+    }
+}
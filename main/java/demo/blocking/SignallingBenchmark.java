@@ -0,0 +1,118 @@
+package demo.blocking;
+
+import queue.MostRecentlyInsertedBlockingQueue;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Compares the ways an offer wakes a waiting consumer under contention and at low rate:
+hand-off to take on a default queue, signalling waiters on notEmpty, and coalescing signalling.
+take on a default queue never waits on notEmpty, so signalled consumers poll and fall back to takeLatest,
+which waits on notEmpty only when the queue is empty. Coalescing queues make take wait on notEmpty too.
+Every element carries its offer time, consumers record offer-to-take latency.
+Capacity is large enough for nothing to be evicted, so a run where consumers do not get every element
+within the deadline means a consumer got stuck.
+ */
+public class SignallingBenchmark {
+
+    private static final int ELEMENTS_PER_PRODUCER = 200_000;
+
+    private static final int LOW_RATE_ELEMENTS = 2_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int[] threads : new int[][]{{1, 1}, {4, 4}, {1, 8}}) {
+            run("hand-off", threads[0], threads[1], ELEMENTS_PER_PRODUCER, 0,
+                    new MostRecentlyInsertedBlockingQueue<Long>(1 << 22), HAND_OFF);
+            run("signal", threads[0], threads[1], ELEMENTS_PER_PRODUCER, 0,
+                    new MostRecentlyInsertedBlockingQueue<Long>(1 << 22), SIGNAL);
+            run("coalescing 32/50us", threads[0], threads[1], ELEMENTS_PER_PRODUCER, 0,
+                    new MostRecentlyInsertedBlockingQueue<Long>(1 << 22, false, 32, 50, TimeUnit.MICROSECONDS),
+                    HAND_OFF);
+        }
+        run("hand-off low rate", 1, 4, LOW_RATE_ELEMENTS, 100_000,
+                new MostRecentlyInsertedBlockingQueue<Long>(1 << 16), HAND_OFF);
+        run("signal low rate", 1, 4, LOW_RATE_ELEMENTS, 100_000,
+                new MostRecentlyInsertedBlockingQueue<Long>(1 << 16), SIGNAL);
+        run("coalescing low rate", 1, 4, LOW_RATE_ELEMENTS, 100_000,
+                new MostRecentlyInsertedBlockingQueue<Long>(1 << 16, false, 32, 50, TimeUnit.MICROSECONDS),
+                HAND_OFF);
+    }
+
+    private interface Take {
+        Long take(MostRecentlyInsertedBlockingQueue<Long> queue) throws InterruptedException;
+    }
+
+    /**
+     * take, handed off by offer unless the queue coalesces signals
+     */
+    private static final Take HAND_OFF = MostRecentlyInsertedBlockingQueue::take;
+
+    /**
+     * Waits on notEmpty only when the queue is empty, so it gets the element that ended the wait
+     */
+    private static final Take SIGNAL = queue -> {
+        Long e = queue.poll();
+        return e != null ? e : queue.takeLatest();
+    };
+
+    private static void run(String name, int producers, int consumers, int elementsPerProducer, long pauseNanos,
+                            MostRecentlyInsertedBlockingQueue<Long> queue, Take take) throws InterruptedException {
+        long total = (long) producers * elementsPerProducer;
+        AtomicLong taken = new AtomicLong();
+        long[][] latencies = new long[consumers][(int) total];
+        int[] recorded = new int[consumers];
+        ExecutorService exec = Executors.newCachedThreadPool();
+        for (int c = 0; c < consumers; c++) {
+            final int consumer = c;
+            exec.execute(() -> {
+                try {
+                    while (true) {
+                        long offeredAt = take.take(queue);
+                        latencies[consumer][recorded[consumer]++] = System.nanoTime() - offeredAt;
+                        taken.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    // finished
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            exec.execute(() -> {
+                for (int i = 0; i < elementsPerProducer; i++) {
+                    queue.offer(System.nanoTime());
+                    if (pauseNanos > 0)
+                        LockSupport.parkNanos(pauseNanos);
+                }
+            });
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (taken.get() < total && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        exec.shutdownNow();
+        exec.awaitTermination(1, TimeUnit.SECONDS);
+
+        long[] all = new long[(int) taken.get()];
+        int n = 0;
+        for (int c = 0; c < consumers; c++) {
+            System.arraycopy(latencies[c], 0, all, n, recorded[c]);
+            n += recorded[c];
+        }
+        Arrays.sort(all, 0, n);
+        System.out.printf("%-22s %dP%dC  %s  %,.0f ops/s  p50 %,d ns  p99 %,d ns  max %,d ns%n",
+                name, producers, consumers, taken.get() == total ? "ok   " : "STUCK",
+                taken.get() * 1e9 / elapsed, percentile(all, n, 0.5), percentile(all, n, 0.99),
+                n == 0 ? 0 : all[n - 1]);
+    }
+
+    private static long percentile(long[] sorted, int n, double p) {
+        return n == 0 ? 0 : sorted[Math.min(n - 1, (int) (n * p))];
+    }
+}
@@ -0,0 +1,69 @@
+package demo.blocking;
+
+import demo.ThreadHarness;
+import queue.MostRecentlyInsertedBlockingQueue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+One writer offering into a full queue and several readers copying the whole window,
+with locked toArray() and with optimistic snapshot().
+The writer offers consecutive numbers and nothing is taken, so every snapshot must be a run of consecutive
+numbers no longer than capacity; readers check it, a torn or stale copy exits with status 1.
+
+Arguments: readers capacity seconds
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        boolean failed = run("locked toArray", new MostRecentlyInsertedBlockingQueue<>(capacity, false, false),
+                capacity, readers, seconds);
+        failed |= run("optimistic snapshot", new MostRecentlyInsertedBlockingQueue<>(capacity, false, true),
+                capacity, readers, seconds);
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static boolean run(String name, MostRecentlyInsertedBlockingQueue<Long> queue, int capacity, int readers,
+                               int seconds) throws InterruptedException {
+        LongAdder offers = new LongAdder();
+        LongAdder snapshots = new LongAdder();
+        AtomicReference<String> violation = new AtomicReference<>();
+        new ThreadHarness()
+                .add(1, "writer", i -> {
+                    for (long element = 0; ThreadHarness.running(); element++) {
+                        queue.offer(element);
+                        offers.increment();
+                    }
+                })
+                .add(readers, "reader", i -> {
+                    while (ThreadHarness.running()) {
+                        check(queue.snapshot(), capacity, violation);
+                        snapshots.increment();
+                    }
+                })
+                .run(seconds);
+        String result = violation.get();
+        System.out.printf("%-20s 1W%dR  offers %,d/s  snapshots %,d/s  %s%n",
+                name, readers, offers.sum() / seconds, snapshots.sum() / seconds,
+                result == null ? "OK" : "VIOLATION " + result);
+        return result != null;
+    }
+
+    private static void check(Object[] snapshot, int capacity, AtomicReference<String> violation) {
+        if (snapshot.length > capacity) {
+            violation.compareAndSet(null, "snapshot of " + snapshot.length + " elements");
+            return;
+        }
+        for (int i = 1; i < snapshot.length; i++) {
+            if ((Long) snapshot[i] != (Long) snapshot[i - 1] + 1) {
+                violation.compareAndSet(null, "snapshot has " + snapshot[i] + " after " + snapshot[i - 1]);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package demo.stress;
+
+import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Supplier;
+
+/*
+jcstress style races on tiny queues: two actors call one operation each on the same fresh queue,
+then an arbiter inspects both results and the final contents. Every outcome is counted and checked
+against the outcomes a linearizable queue allows. Actors run over a batch of queues between barriers,
+so they hit the same queue at nearly the same time.
+Exits with status 1 if a forbidden outcome was observed.
+
+Arguments: rounds batch
+ */
+public class ActorArbiterStress {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        boolean failed = false;
+        for (Implementation implementation : Implementation.values()) {
+            for (Case c : cases()) {
+                failed |= run(implementation, c, rounds, batch);
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /*
+    Queue is created with capacity and prefilled by offering prefill, then polling polled elements,
+    which lets a case start with a wrapped ring. Capacities cover both masked and modulo indexing.
+     */
+    private abstract static class Case {
+
+        final String name;
+
+        final int capacity;
+
+        final int[] prefill;
+
+        final int polled;
+
+        final Set<String> acceptable;
+
+        Case(String name, int capacity, int[] prefill, int polled, String... acceptable) {
+            this.name = name;
+            this.capacity = capacity;
+            this.prefill = prefill;
+            this.polled = polled;
+            this.acceptable = new HashSet<>(Arrays.asList(acceptable));
+        }
+
+        abstract Object actor1(Queue<Integer> queue);
+
+        abstract Object actor2(Queue<Integer> queue);
+
+        String arbiter(Queue<Integer> queue, Object r1, Object r2) {
+            return r1 + " " + r2 + " " + Arrays.toString(queue.toArray());
+        }
+    }
+
+    private static List<Case> cases() {
+        return Arrays.asList(
+                new Case("offer/offer evicting", 2, new int[]{0, 1}, 0,
+                        "true true [2, 3]", "true true [3, 2]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(2); }
+                    Object actor2(Queue<Integer> q) { return q.offer(3); }
+                },
+                new Case("offer/poll on full", 2, new int[]{0, 1}, 0,
+                        "true 0 [1, 2]", "true 1 [2]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(2); }
+                    Object actor2(Queue<Integer> q) { return q.poll(); }
+                },
+                new Case("poll/poll", 2, new int[]{0}, 0,
+                        "0 null []", "null 0 []") {
+                    Object actor1(Queue<Integer> q) { return q.poll(); }
+                    Object actor2(Queue<Integer> q) { return q.poll(); }
+                },
+                new Case("offer/poll on empty", 2, new int[]{}, 0,
+                        "true 0 []", "true null [0]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(0); }
+                    Object actor2(Queue<Integer> q) { return q.poll(); }
+                },
+                new Case("offer/size on full", 3, new int[]{0, 1, 2}, 0,
+                        "true 3 [1, 2, 3]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(3); }
+                    Object actor2(Queue<Integer> q) { return q.size(); }
+                },
+                new Case("offer/peek on full", 3, new int[]{0, 1, 2}, 0,
+                        "true 0 [1, 2, 3]", "true 1 [1, 2, 3]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(3); }
+                    Object actor2(Queue<Integer> q) { return q.peek(); }
+                },
+                new Case("offer/isEmpty", 2, new int[]{}, 0,
+                        "true true [0]", "true false [0]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(0); }
+                    Object actor2(Queue<Integer> q) { return q.isEmpty(); }
+                },
+                new Case("offer/toArray(T[]) wrapped", 3, new int[]{0, 1, 2, 3}, 1,
+                        "true [2, 3] [2, 3, 4]", "true [2, 3, 4] [2, 3, 4]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(4); }
+                    Object actor2(Queue<Integer> q) { return Arrays.toString(q.toArray(new Integer[0])); }
+                },
+                new Case("offer/iterator on full", 2, new int[]{0, 1}, 0,
+                        "true [0, 1] [1, 2]", "true [1, 2] [1, 2]", "true [0, 1, 2] [1, 2]") {
+                    Object actor1(Queue<Integer> q) { return q.offer(2); }
+                    Object actor2(Queue<Integer> q) {
+                        List<Integer> seen = new ArrayList<>();
+                        for (Integer e : q)
+                            seen.add(e);
+                        return seen;
+                    }
+                },
+                new Case("remove/poll", 3, new int[]{0, 1, 2}, 0,
+                        "true 1 [2]", "false 0 [1, 2]") {
+                    Object actor1(Queue<Integer> q) { return q.remove(0); }
+                    Object actor2(Queue<Integer> q) { return q.poll(); }
+                });
+    }
+
+    private static boolean run(Implementation implementation, Case c, int rounds, int batch) throws Exception {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<Integer>[] queues = new Queue[batch];
+        Object[] results1 = new Object[batch];
+        Object[] results2 = new Object[batch];
+        CyclicBarrier start = new CyclicBarrier(3);
+        CyclicBarrier end = new CyclicBarrier(3);
+        Thread actor1 = new Thread(() -> act(queues, results1, c, true, rounds, start, end));
+        Thread actor2 = new Thread(() -> act(queues, results2, c, false, rounds, start, end));
+        actor1.start();
+        actor2.start();
+
+        Map<String, Long> outcomes = new TreeMap<>();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < batch; i++)
+                queues[i] = prepare(implementation, c);
+            start.await();
+            end.await();
+            for (int i = 0; i < batch; i++)
+                outcomes.merge(c.arbiter(queues[i], results1[i], results2[i]), 1L, Long::sum);
+        }
+        actor1.join();
+        actor2.join();
+
+        boolean failed = false;
+        System.out.printf("%s, %s%n", implementation, c.name);
+        for (Map.Entry<String, Long> outcome : outcomes.entrySet()) {
+            boolean acceptable = c.acceptable.contains(outcome.getKey());
+            failed |= !acceptable;
+            System.out.printf("    %-40s %,12d  %s%n", outcome.getKey(), outcome.getValue(),
+                    acceptable ? "ACCEPTABLE" : "FORBIDDEN");
+        }
+        return failed;
+    }
+
+    private static Queue<Integer> prepare(Implementation implementation, Case c) {
+        Queue<Integer> queue = implementation.create(c.capacity);
+        for (int e : c.prefill)
+            queue.offer(e);
+        for (int i = 0; i < c.polled; i++)
+            queue.poll();
+        return queue;
+    }
+
+    private static void act(Queue<Integer>[] queues, Object[] results, Case c, boolean first, int rounds,
+                            CyclicBarrier start, CyclicBarrier end) {
+        try {
+            for (int round = 0; round < rounds; round++) {
+                start.await();
+                for (int i = 0; i < queues.length; i++) {
+                    Queue<Integer> queue = queues[i];
+                    results[i] = call(() -> first ? c.actor1(queue) : c.actor2(queue));
+                }
+                end.await();
+            }
+        } catch (InterruptedException | BrokenBarrierException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Object call(Supplier<Object> action) {
+        try {
+            return action.get();
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package demo.stress;
+
+import queue.DurableMostRecentlyInsertedQueue;
+import queue.codec.Codecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Interrupts producers and consumers of the durable queue at random points, including in the middle of file I/O,
+then checks the queue still works, keeps each producer's elements in order and recovers them after reopening.
+Workers run until a deadline rather than until interrupted, interrupts are what is being tested.
+Exits with status 1 on the first violation.
+
+Arguments: producers consumers seconds
+ */
+public class DurableInterruptCheck {
+
+    private static final int CAPACITY = 64;
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File directory = Files.createTempDirectory("durable-interrupt").toFile();
+        AtomicReference<String> violation = new AtomicReference<>();
+        LongAdder offered = new LongAdder();
+        LongAdder taken = new LongAdder();
+        try {
+            DurableMostRecentlyInsertedQueue<Integer> queue = open(directory);
+
+            // a thread interrupted before it calls the queue
+            Thread.currentThread().interrupt();
+            queue.offer(-1);
+            Integer polled = queue.poll();
+            if (!Thread.interrupted())
+                violation.compareAndSet(null, "interrupt status of the caller was lost");
+            if (polled == null || polled != -1)
+                violation.compareAndSet(null, "interrupted offer then poll returned " + polled);
+
+            // threads interrupted while they use the queue
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            Thread[] workers = new Thread[producers + consumers];
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                workers[p] = new Thread(() -> {
+                    for (int n = 0; System.nanoTime() < deadline && violation.get() == null; n++) {
+                        try {
+                            queue.offer(n * producers + producer);
+                            offered.increment();
+                        } catch (RuntimeException e) {
+                            violation.compareAndSet(null, "offer threw " + e);
+                        }
+                        Thread.interrupted();
+                    }
+                }, "producer-" + p);
+            }
+            for (int c = 0; c < consumers; c++) {
+                int consumer = c;
+                workers[producers + c] = new Thread(() -> {
+                    int[] lastSeen = new int[producers];
+                    Arrays.fill(lastSeen, -1);
+                    for (long round = 0; System.nanoTime() < deadline && violation.get() == null; round++) {
+                        Integer e = null;
+                        try {
+                            switch ((int) ((round + consumer) % 3)) {
+                                case 0:
+                                    e = queue.take();
+                                    break;
+                                case 1:
+                                    e = queue.poll(1, TimeUnit.MILLISECONDS);
+                                    break;
+                                default:
+                                    e = queue.poll();
+                            }
+                        } catch (InterruptedException ex) {
+                            // interrupted while waiting
+                        } catch (RuntimeException ex) {
+                            violation.compareAndSet(null, "consumer threw " + ex);
+                        }
+                        Thread.interrupted();
+                        if (e != null) {
+                            int producer = e % producers;
+                            if (e <= lastSeen[producer])
+                                violation.compareAndSet(null, "took " + e + " after " + lastSeen[producer]);
+                            lastSeen[producer] = e;
+                            taken.increment();
+                        }
+                    }
+                }, "consumer-" + c);
+            }
+            for (Thread worker : workers)
+                worker.start();
+            while (System.nanoTime() < deadline && violation.get() == null) {
+                workers[ThreadLocalRandom.current().nextInt(workers.length)].interrupt();
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(10_000, 200_000));
+            }
+            // consumers blocked in take on an empty queue leave once the deadline passed
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.interrupt();
+                    worker.join(10);
+                }
+            }
+
+            // the queue still works and its contents survive reopening
+            queue.clear();
+            for (int i = 0; i < 3; i++)
+                queue.offer(i);
+            if (queue.poll() != 0)
+                violation.compareAndSet(null, "poll after the interrupts did not return the oldest element");
+            // persists the consumed position too
+            queue.sync();
+            queue.close();
+            DurableMostRecentlyInsertedQueue<Integer> reopened = open(directory);
+            Object[] recovered = reopened.toArray();
+            if (!Arrays.equals(recovered, new Object[]{1, 2}))
+                violation.compareAndSet(null, "reopened queue holds " + Arrays.toString(recovered));
+            reopened.close();
+        } catch (IOException | RuntimeException e) {
+            violation.compareAndSet(null, "threw " + e);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(directory.toPath());
+        }
+
+        String result = violation.get();
+        System.out.printf("%dP%dC: offered %,d taken %,d  %s%n", producers, consumers, offered.sum(), taken.sum(),
+                result == null ? "OK" : "VIOLATION " + result);
+        System.exit(result == null ? 0 : 1);
+    }
+
+    private static DurableMostRecentlyInsertedQueue<Integer> open(File directory) throws IOException {
+        return new DurableMostRecentlyInsertedQueue<>(directory, CAPACITY, CAPACITY / 8, Codecs.INTEGER,
+                0, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,209 @@
+package demo.stress;
+
+import queue.EventTimeMostRecentlyInsertedQueue;
+import queue.MostRecentlyInsertedBlockingQueue;
+import queue.SharedMemoryMostRecentlyInsertedQueue;
+import queue.WindowedAggregateQueue;
+import queue.codec.Codecs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/*
+Single-threaded checks of edge cases the concurrent tools do not reach. Each case returns null when it passes,
+otherwise what went wrong.
+Exits with status 1 if a case failed.
+ */
+public class EdgeCaseCheck {
+
+    private interface Case {
+        String check() throws Exception;
+    }
+
+    public static void main(String[] args) {
+        boolean failed = false;
+        for (Map.Entry<String, Case> c : cases().entrySet()) {
+            String failure;
+            try {
+                failure = c.getValue().check();
+            } catch (Exception | Error e) {
+                failure = "threw " + e;
+            }
+            System.out.printf("%-50s %s%n", c.getKey(), failure == null ? "OK" : "FAILED " + failure);
+            failed |= failure != null;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static Map<String, Case> cases() {
+        Map<String, Case> cases = new LinkedHashMap<>();
+        cases.put("windowed aggregates reject non-finite samples", () -> {
+            WindowedAggregateQueue queue = new WindowedAggregateQueue(4);
+            queue.offer(2.0);
+            for (double sample : new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN}) {
+                try {
+                    queue.offer(sample);
+                    return "accepted " + sample;
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+            if (queue.size() != 1)
+                return "rejected samples changed size to " + queue.size();
+            queue.offer(1.0);
+            if (queue.sum() != 3.0 || queue.min() != 1.0 || queue.max() != 2.0)
+                return "sum " + queue.sum() + " min " + queue.min() + " max " + queue.max() + " after 2, 1";
+            return null;
+        });
+        cases.put("windowed aggregates of extreme finite samples", () -> {
+            WindowedAggregateQueue queue = new WindowedAggregateQueue(4);
+            queue.offer(Double.MAX_VALUE);
+            queue.offer(-Double.MAX_VALUE);
+            queue.offer(Double.MIN_VALUE);
+            queue.offer(1.0);
+            if (!Double.isFinite(queue.quantile(0)) || !Double.isFinite(queue.quantile(1)))
+                return "quantiles " + queue.quantile(0) + " and " + queue.quantile(1);
+            if (queue.min() != -Double.MAX_VALUE || queue.max() != Double.MAX_VALUE)
+                return "min " + queue.min() + " max " + queue.max();
+            return null;
+        });
+        cases.put("event time queue removal keeps heap order", () -> {
+            Random random = new Random(42);
+            for (int round = 0; round < 2000; round++) {
+                // elements are their own timestamps, distinct so equal ones need no arrival order
+                EventTimeMostRecentlyInsertedQueue<Integer> queue =
+                        new EventTimeMostRecentlyInsertedQueue<>(1 + random.nextInt(32), e -> e);
+                List<Integer> model = new ArrayList<>();
+                Set<Integer> offered = new HashSet<>();
+                for (int i = 0; i < 40; i++) {
+                    int e = random.nextInt(1000);
+                    if (!offered.add(e))
+                        continue;
+                    boolean accepted = queue.offer(e);
+                    if (accepted) {
+                        model.add(e);
+                        Collections.sort(model);
+                        if (model.size() > queue.size())
+                            model.remove(0);
+                    }
+                }
+                switch (random.nextInt(4)) {
+                    case 0:
+                        Integer removed = model.isEmpty() ? 0 : model.get(random.nextInt(model.size()));
+                        if (queue.remove(removed) != model.remove(removed))
+                            return "remove(" + removed + ") disagreed with the model";
+                        break;
+                    case 1:
+                        List<Integer> retained = new ArrayList<>();
+                        for (Integer e : model)
+                            if (random.nextBoolean())
+                                retained.add(e);
+                        queue.retainAll(retained);
+                        model.retainAll(retained);
+                        break;
+                    case 2:
+                        int modulus = 2 + random.nextInt(3);
+                        queue.removeIf(e -> e % modulus == 0);
+                        model.removeIf(e -> e % modulus == 0);
+                        break;
+                    default:
+                        // every element is returned once even when removal moves one before the cursor
+                        List<Integer> present = new ArrayList<>(model);
+                        List<Integer> seen = new ArrayList<>();
+                        for (Iterator<Integer> i = queue.iterator(); i.hasNext(); ) {
+                            Integer e = i.next();
+                            seen.add(e);
+                            if (random.nextBoolean()) {
+                                i.remove();
+                                model.remove(e);
+                            }
+                        }
+                        Collections.sort(seen);
+                        if (!seen.equals(present))
+                            return "iterator returned " + seen + " of " + present;
+                }
+                List<Integer> polled = new ArrayList<>();
+                Integer e;
+                while ((e = queue.poll()) != null)
+                    polled.add(e);
+                if (!polled.equals(model))
+                    return "polled " + polled + " expected " + model;
+            }
+            return null;
+        });
+        cases.put("shared memory peekLatest after a producer died mid-write", () -> {
+            File file = Files.createTempFile("shared-memory", ".queue").toFile();
+            try (SharedMemoryMostRecentlyInsertedQueue<Long> queue =
+                         new SharedMemoryMostRecentlyInsertedQueue<>(file, 1, 8, Codecs.LONG, false)) {
+                queue.offer(7L);
+                if (queue.peekLatest() != 7L)
+                    return "peekLatest returned " + queue.peekLatest();
+                // what a producer leaves behind when it dies writing sequence 1: the only slot, after the
+                // 128 byte header, stamped odd, 2 * 1 + 1, and the tail never advanced
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                    mapping.order(ByteOrder.nativeOrder()).putLong(128, 3);
+                }
+                Long latest = queue.peekLatest();
+                if (latest != null)
+                    return "peekLatest returned " + latest + " from a slot being overwritten";
+            } finally {
+                Files.deleteIfExists(file.toPath());
+            }
+            return null;
+        });
+        cases.put("blocking queue readFrom allocates only the chunks it fills", () -> {
+            MostRecentlyInsertedBlockingQueue<Long> source = new MostRecentlyInsertedBlockingQueue<>(5000);
+            for (long i = 0; i < 5003; i++)
+                source.offer(i);
+            ByteArrayOutputStream wrapped = new ByteArrayOutputStream();
+            source.writeTo(Channels.newChannel(wrapped), Codecs.LONG);
+            source.clear();
+            source.offer(42L);
+            ByteArrayOutputStream single = new ByteArrayOutputStream();
+            source.writeTo(Channels.newChannel(single), Codecs.LONG);
+
+            // run with -Xmx48m to also catch a transient ring of capacity slots, which alone needs 64 MB
+            MostRecentlyInsertedBlockingQueue<Long> queue = new MostRecentlyInsertedBlockingQueue<>(1 << 24);
+            queue.readFrom(Channels.newChannel(new ByteArrayInputStream(single.toByteArray())), Codecs.LONG);
+            if (queue.allocatedCapacity() != 1024)
+                return "one element restored into " + queue.allocatedCapacity() + " slots";
+            if (!queue.toString().equals("[42]"))
+                return "restored " + queue;
+
+            // more elements than capacity: the oldest are dropped and every chunk is filled
+            MostRecentlyInsertedBlockingQueue<Long> small = new MostRecentlyInsertedBlockingQueue<>(3000);
+            small.readFrom(Channels.newChannel(new ByteArrayInputStream(wrapped.toByteArray())), Codecs.LONG);
+            if (small.allocatedCapacity() != 3000)
+                return "full restore into " + small.allocatedCapacity() + " slots";
+            Long expected = 2003L;
+            for (Long e : small) {
+                if (!e.equals(expected))
+                    return "restored " + e + " where " + expected + " was expected";
+                expected++;
+            }
+            if (expected != 5003L)
+                return "restored up to " + expected;
+            return null;
+        });
+        return cases;
+    }
+}
@@ -0,0 +1,26 @@
+package demo.stress;
+
+import queue.ConcurrentMostRecentlyInsertedQueue;
+import queue.MostRecentlyInsertedBlockingQueue;
+
+import java.util.Queue;
+import java.util.function.IntFunction;
+
+/*
+Concurrent queue variants exercised by the stress tools
+ */
+enum Implementation {
+    CONCURRENT(ConcurrentMostRecentlyInsertedQueue::new),
+    BLOCKING(MostRecentlyInsertedBlockingQueue::new),
+    BLOCKING_OPTIMISTIC_SNAPSHOTS(capacity -> new MostRecentlyInsertedBlockingQueue<>(capacity, false, true));
+
+    private final IntFunction<Queue<Integer>> factory;
+
+    Implementation(IntFunction<Queue<Integer>> factory) {
+        this.factory = factory;
+    }
+
+    Queue<Integer> create(int capacity) {
+        return factory.apply(capacity);
+    }
+}
@@ -0,0 +1,193 @@
+package demo.stress;
+
+import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+Randomized linearizability check. Threads run short random sequences of operations on one shared queue
+while invocation and response times are recorded. Each history is then searched (Wing and Gong) for an
+order of the operations that respects real time and gives the same results on a sequential model:
+a deque that drops its oldest element when an offer finds it full.
+Histories are kept short, the search is exponential in the number of overlapping operations.
+Prints the first history that cannot be linearized and exits with status 1.
+
+Arguments: histories threads operationsPerThread capacity
+ */
+public class LinearizabilityCheck {
+
+    public static void main(String[] args) throws Exception {
+        int histories = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int capacity = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        if (threads * operations > 62) {
+            throw new IllegalArgumentException("At most 62 operations per history");
+        }
+
+        boolean failed = false;
+        for (Implementation implementation : Implementation.values()) {
+            failed |= !check(implementation, histories, threads, operations, capacity);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    enum Operation {
+        OFFER, POLL, PEEK, SIZE, IS_EMPTY, CONTAINS, REMOVE;
+
+        Object apply(Queue<Integer> queue, int argument) {
+            switch (this) {
+                case OFFER:
+                    return queue.offer(argument);
+                case POLL:
+                    return queue.poll();
+                case PEEK:
+                    return queue.peek();
+                case SIZE:
+                    return queue.size();
+                case IS_EMPTY:
+                    return queue.isEmpty();
+                case CONTAINS:
+                    return queue.contains(argument);
+                default:
+                    return queue.remove(argument);
+            }
+        }
+    }
+
+    private static final class Event {
+
+        final int thread;
+
+        final Operation operation;
+
+        final int argument;
+
+        long invoked;
+
+        long returned;
+
+        Object result;
+
+        Event(int thread, Operation operation, int argument) {
+            this.thread = thread;
+            this.operation = operation;
+            this.argument = argument;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,12d..%,12d  T%d %s(%s) = %s", invoked, returned, thread, operation,
+                    operation == Operation.OFFER || operation == Operation.CONTAINS || operation == Operation.REMOVE
+                            ? argument : "", result);
+        }
+    }
+
+    private static boolean check(Implementation implementation, int histories, int threads, int operations,
+                                 int capacity) throws Exception {
+        Event[][] scripts = new Event[threads][operations];
+        Queue<Integer>[] current = newQueueHolder();
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        CyclicBarrier end = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Event[] script = scripts[t];
+            workers[t] = new Thread(() -> perform(script, current, histories, start, end));
+            workers[t].start();
+        }
+
+        long linearized = 0;
+        for (int h = 0; h < histories; h++) {
+            for (int t = 0; t < threads; t++)
+                for (int i = 0; i < operations; i++)
+                    scripts[t][i] = randomEvent(t, i);
+            current[0] = implementation.create(capacity);
+            start.await();
+            end.await();
+
+            Event[] history = new Event[threads * operations];
+            for (int t = 0; t < threads; t++)
+                System.arraycopy(scripts[t], 0, history, t * operations, operations);
+            if (!linearizable(history, 0L, new ArrayDeque<>(), capacity, new HashSet<>())) {
+                for (Thread worker : workers)
+                    worker.interrupt();
+                Arrays.sort(history, Comparator.comparingLong(e -> e.invoked));
+                long origin = history[0].invoked;
+                System.out.printf("%s: history %d is not linearizable, capacity %d%n", implementation, h, capacity);
+                for (Event e : history) {
+                    e.invoked -= origin;
+                    e.returned -= origin;
+                    System.out.println("    " + e);
+                }
+                return false;
+            }
+            linearized++;
+        }
+        for (Thread worker : workers)
+            worker.join();
+        System.out.printf("%s: %,d histories linearizable%n", implementation, linearized);
+        return true;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<Integer>[] newQueueHolder() {
+        return new Queue[1];
+    }
+
+    private static Event randomEvent(int thread, int index) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Operation[] operations = Operation.values();
+        // offers are half of all operations, so queues get full and evict
+        Operation operation = random.nextBoolean() ? Operation.OFFER : operations[random.nextInt(operations.length)];
+        int argument = operation == Operation.OFFER ? thread * 100 + index : random.nextInt(3) * 100 + random.nextInt(3);
+        return new Event(thread, operation, argument);
+    }
+
+    private static void perform(Event[] script, Queue<Integer>[] current, int histories,
+                                CyclicBarrier start, CyclicBarrier end) {
+        try {
+            for (int h = 0; h < histories; h++) {
+                start.await();
+                Queue<Integer> queue = current[0];
+                for (Event e : script) {
+                    e.invoked = System.nanoTime();
+                    e.result = e.operation.apply(queue, e.argument);
+                    e.returned = System.nanoTime();
+                }
+                end.await();
+            }
+        } catch (InterruptedException | BrokenBarrierException e) {
+            // check failed
+        }
+    }
+
+    /*
+    done has a bit set for every event already placed in the sequential order.
+    An event can go next if it was invoked before every remaining event returned.
+    visited memoizes (done, model) pairs already proven to be dead ends.
+     */
+    private static boolean linearizable(Event[] history, long done, ArrayDeque<Integer> model, int capacity,
+                                        Set<String> visited) {
+        if (done == (1L << history.length) - 1)
+            return true;
+        if (!visited.add(done + " " + model))
+            return false;
+        long firstReturned = Long.MAX_VALUE;
+        for (int i = 0; i < history.length; i++)
+            if ((done & 1L << i) == 0)
+                firstReturned = Math.min(firstReturned, history[i].returned);
+        for (int i = 0; i < history.length; i++) {
+            Event e = history[i];
+            if ((done & 1L << i) != 0 || e.invoked > firstReturned)
+                continue;
+            ArrayDeque<Integer> next = new ArrayDeque<>(model);
+            if (e.operation == Operation.OFFER && next.size() == capacity)
+                next.poll();
+            if (Objects.equals(e.operation.apply(next, e.argument), e.result)
+                    && linearizable(history, done | 1L << i, next, capacity, visited))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,297 @@
+package demo.stress;
+
+import demo.ThreadHarness;
+import queue.ConcurrentMostRecentlyInsertedQueue;
+import queue.MostRecentlyInsertedBlockingQueue;
+import queue.QueueSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Long run under many threads checking invariants that must hold whatever the interleaving:
+- no element is taken twice
+- each consumer takes the elements of one producer from the oldest end in offer order
+- size never exceeds capacity, iteration and toArray see each producer's elements in offer order
+- offered = taken + still queued + evicted, with evicted >= 0
+Producers offer longs tagging producer and sequence, pausing together now and then so consumers also wait
+on an empty queue. Consumers rotate through every way of taking:
+poll and pollLatest/drainLatest, blocking variants also take (hand-off), timed poll, takeBatch, drainTo,
+pollAsync, takeBatchAsync, takeLatest and poll after a QueueSelector select.
+An observer thread keeps reading size, iterator and toArray, on blocking variants also snapshot
+(optimistic on BLOCKING_OPTIMISTIC_SNAPSHOTS) and releases unused chunks.
+Exits with status 1 on the first violation.
+
+Arguments: implementation producers consumers capacity seconds
+ */
+public class Soak {
+
+    private static final int SEQUENCE_BITS = 40;
+
+    public static void main(String[] args) throws InterruptedException {
+        Implementation implementation = Implementation.valueOf(args.length > 0 ? args[0] : "BLOCKING");
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int consumers = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int capacity = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+
+        Queue<Long> queue = longQueue(implementation, capacity);
+        AtomicReference<String> violation = new AtomicReference<>();
+        BitSet[] taken = new BitSet[producers];
+        long[] offered = new long[producers];
+        LongAdder takenCount = new LongAdder();
+        LongAdder observations = new LongAdder();
+        for (int p = 0; p < producers; p++)
+            taken[p] = new BitSet();
+
+        ThreadHarness harness = new ThreadHarness()
+                .add(producers, "producer", producer -> {
+                    long sequence = 0;
+                    while (ThreadHarness.running() && violation.get() == null) {
+                        // all producers pause for a quarter of every 67 ms, consumers empty the queue and wait
+                        if ((System.nanoTime() >>> 26) % 4 == 0) {
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                            continue;
+                        }
+                        queue.offer(((long) producer << SEQUENCE_BITS) | sequence++);
+                    }
+                    offered[producer] = sequence;
+                })
+                .add(consumers, "consumer", consumer -> {
+                    Consumer state = new Consumer(queue, taken, takenCount, violation);
+                    for (long round = consumer; ThreadHarness.running() && violation.get() == null; round++)
+                        state.round(round);
+                })
+                .add(1, "observer", i -> {
+                    while (ThreadHarness.running() && violation.get() == null) {
+                        int size = queue.size();
+                        if (size < 0 || size > capacity)
+                            violation.compareAndSet(null, "size " + size + " out of [0, " + capacity + "]");
+                        long[] last = new long[producers];
+                        Arrays.fill(last, -1);
+                        for (Long e : queue)
+                            ordered(e, last, violation, "iterator");
+                        Object[] array = queue.toArray();
+                        if (array.length > capacity)
+                            violation.compareAndSet(null, "toArray returned " + array.length + " elements");
+                        Arrays.fill(last, -1);
+                        for (Object e : array)
+                            ordered((Long) e, last, violation, "toArray");
+                        if (queue instanceof MostRecentlyInsertedBlockingQueue) {
+                            MostRecentlyInsertedBlockingQueue<?> blocking = (MostRecentlyInsertedBlockingQueue<?>) queue;
+                            // optimistic read path when the variant has optimistic snapshots, toArray otherwise
+                            Object[] snapshot = blocking.snapshot();
+                            if (snapshot.length > capacity)
+                                violation.compareAndSet(null, "snapshot returned " + snapshot.length + " elements");
+                            Arrays.fill(last, -1);
+                            for (Object e : snapshot)
+                                ordered((Long) e, last, violation, "snapshot");
+                            blocking.releaseUnusedChunks();
+                        }
+                        observations.increment();
+                    }
+                });
+
+        harness.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (violation.get() == null && System.nanoTime() < deadline) {
+            TimeUnit.SECONDS.sleep(1);
+            System.out.printf("taken %,d  observations %,d  size %d%n", takenCount.sum(), observations.sum(), queue.size());
+        }
+        harness.stop();
+
+        long totalOffered = 0;
+        for (long n : offered)
+            totalOffered += n;
+        long remaining = queue.size();
+        long evicted = totalOffered - takenCount.sum() - remaining;
+        if (evicted < 0)
+            violation.compareAndSet(null, "more elements taken and queued than offered");
+        String result = violation.get();
+        System.out.printf("%s %dP%dC capacity %d: offered %,d taken %,d queued %,d evicted %,d  %s%n",
+                implementation, producers, consumers, capacity, totalOffered, takenCount.sum(), remaining, evicted,
+                result == null ? "OK" : "VIOLATION " + result);
+        System.exit(result == null ? 0 : 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<Long> longQueue(Implementation implementation, int capacity) {
+        // factories are typed for Integer, the queues themselves take any element
+        return (Queue<Long>) (Queue<?>) implementation.create(capacity);
+    }
+
+    /*
+    Takes elements in one consumer, each round with another operation. Elements taken from the oldest end
+    are checked to come in offer order per producer, those from the newest end only to be taken once.
+     */
+    private static final class Consumer {
+
+        private static final int BLOCKING_OPERATIONS = 8;
+
+        private static final int CONCURRENT_OPERATIONS = 3;
+
+        private final Queue<Long> queue;
+
+        private final MostRecentlyInsertedBlockingQueue<Long> blocking;
+
+        private final BitSet[] taken;
+
+        private final LongAdder takenCount;
+
+        private final AtomicReference<String> violation;
+
+        private final long[] lastSeen;
+
+        private final Long[] batch = new Long[16];
+
+        private final List<Long> drained = new ArrayList<>();
+
+        private QueueSelector selector;
+
+        @SuppressWarnings("unchecked")
+        Consumer(Queue<Long> queue, BitSet[] taken, LongAdder takenCount, AtomicReference<String> violation) {
+            this.queue = queue;
+            this.blocking = queue instanceof MostRecentlyInsertedBlockingQueue
+                    ? (MostRecentlyInsertedBlockingQueue<Long>) queue : null;
+            this.taken = taken;
+            this.takenCount = takenCount;
+            this.violation = violation;
+            lastSeen = new long[taken.length];
+            Arrays.fill(lastSeen, -1);
+        }
+
+        void round(long round) throws InterruptedException {
+            if (blocking == null) {
+                switch ((int) (round % CONCURRENT_OPERATIONS)) {
+                    case 0:
+                        took(queue.poll(), "poll");
+                        break;
+                    case 1:
+                        tookLatest(((ConcurrentMostRecentlyInsertedQueue<Long>) queue).pollLatest(), "pollLatest");
+                        break;
+                    default:
+                        drained.clear();
+                        ((ConcurrentMostRecentlyInsertedQueue<Long>) queue).drainLatest(drained, 4);
+                        for (Long e : drained)
+                            tookLatest(e, "drainLatest");
+                }
+                return;
+            }
+            switch ((int) (round % BLOCKING_OPERATIONS)) {
+                case 0:
+                    took(blocking.poll(), "poll");
+                    break;
+                case 1:
+                    int n = blocking.takeBatch(batch, 1, batch.length, 1, TimeUnit.MILLISECONDS);
+                    for (int i = 0; i < n; i++)
+                        took(batch[i], "takeBatch");
+                    break;
+                case 2:
+                    drained.clear();
+                    blocking.drainTo(drained, 8);
+                    for (Long e : drained)
+                        took(e, "drainTo");
+                    took(blocking.poll(1, TimeUnit.MILLISECONDS), "poll(timeout)");
+                    break;
+                case 3:
+                    // hand-off when the queue is empty, stopped by interrupt
+                    took(blocking.take(), "take");
+                    break;
+                case 4:
+                    took(await(blocking.pollAsync()), "pollAsync");
+                    break;
+                case 5:
+                    List<Long> elements = await(blocking.takeBatchAsync(4));
+                    if (elements != null) {
+                        for (Long e : elements)
+                            took(e, "takeBatchAsync");
+                    }
+                    break;
+                case 6:
+                    if (round % 3 == 0) {
+                        tookLatest(blocking.takeLatest(), "takeLatest");
+                    } else if (round % 3 == 1) {
+                        tookLatest(blocking.pollLatest(), "pollLatest");
+                    } else {
+                        drained.clear();
+                        blocking.drainLatest(drained, 4);
+                        for (Long e : drained)
+                            tookLatest(e, "drainLatest");
+                    }
+                    break;
+                default:
+                    if (selector == null) {
+                        selector = new QueueSelector();
+                        selector.register(blocking);
+                    }
+                    if (selector.select(1, TimeUnit.MILLISECONDS).contains(blocking))
+                        took(blocking.poll(), "poll after select");
+            }
+        }
+
+        /*
+        Waits briefly, then withdraws the request. A future completed meanwhile cannot be cancelled
+        and its elements are taken, as are those of one completed when the consumer is stopped.
+         */
+        private <T> T await(CompletableFuture<T> future) {
+            try {
+                return future.get(1, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return future.cancel(false) ? null : future.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return future.cancel(false) ? null : future.join();
+            } catch (ExecutionException e) {
+                violation.compareAndSet(null, "future failed with " + e.getCause());
+                return null;
+            }
+        }
+
+        private void took(Long e, String operation) {
+            if (e == null)
+                return;
+            int producer = (int) (e >>> SEQUENCE_BITS);
+            long sequence = e & ((1L << SEQUENCE_BITS) - 1);
+            if (sequence <= lastSeen[producer])
+                violation.compareAndSet(null, operation + " returned " + producer + ":" + sequence
+                        + " after " + producer + ":" + lastSeen[producer]);
+            lastSeen[producer] = sequence;
+            tookOnce(producer, sequence, operation);
+        }
+
+        private void tookLatest(Long e, String operation) {
+            if (e != null)
+                tookOnce((int) (e >>> SEQUENCE_BITS), e & ((1L << SEQUENCE_BITS) - 1), operation);
+        }
+
+        private void tookOnce(int producer, long sequence, String operation) {
+            BitSet seen = taken[producer];
+            synchronized (seen) {
+                if (seen.get((int) sequence))
+                    violation.compareAndSet(null, operation + " returned " + producer + ":" + sequence + " twice");
+                seen.set((int) sequence);
+            }
+            takenCount.increment();
+        }
+    }
+
+    private static void ordered(Long e, long[] last, AtomicReference<String> violation, String operation) {
+        int producer = (int) (e >>> SEQUENCE_BITS);
+        long sequence = e & ((1L << SEQUENCE_BITS) - 1);
+        if (sequence <= last[producer])
+            violation.compareAndSet(null, operation + " saw " + producer + ":" + sequence
+                    + " after " + producer + ":" + last[producer]);
+        last[producer] = sequence;
+    }
+
+}
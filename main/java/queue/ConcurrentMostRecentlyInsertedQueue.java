@@ -1,11 +1,18 @@
 package queue;
 
 import java.util.AbstractQueue;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /*
-Synchronized wrapper of MostRecentlyInsertedQueue
+Synchronized wrapper of MostRecentlyInsertedQueue.
+Bulk operations are atomic. Iteration is over a snapshot copied under the monitor,
+so user code never runs while holding it and producers are stalled only for the copy.
  */
 public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
@@ -15,11 +22,34 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         delegateQueue = new MostRecentlyInsertedQueue<>(capacity);
     }
 
+    /*
+    Deduplicating modes, see MostRecentlyInsertedQueue
+     */
+    public ConcurrentMostRecentlyInsertedQueue(int capacity, boolean deduplicate) {
+        delegateQueue = new MostRecentlyInsertedQueue<>(capacity, deduplicate);
+    }
+
+    public ConcurrentMostRecentlyInsertedQueue(int capacity, double falsePositiveRate) {
+        delegateQueue = new MostRecentlyInsertedQueue<>(capacity, falsePositiveRate);
+    }
+
     @Override
     public synchronized boolean offer(E e) {
         return delegateQueue.offer(e);
     }
 
+    /*
+    Returns false when deduplicating offer skipped e, where AbstractQueue.add would throw
+     */
+    @Override
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    public synchronized boolean offerIfAbsent(E e) {
+        return delegateQueue.offerIfAbsent(e);
+    }
+
     @Override
     public synchronized E peek() {
         return delegateQueue.peek();
@@ -30,6 +60,18 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         return delegateQueue.poll();
     }
 
+    public synchronized E peekLatest() {
+        return delegateQueue.peekLatest();
+    }
+
+    public synchronized E pollLatest() {
+        return delegateQueue.pollLatest();
+    }
+
+    public synchronized int drainLatest(Collection<? super E> c, int maxElements) {
+        return delegateQueue.drainLatest(c, maxElements);
+    }
+
     @Override
     public synchronized void clear() {
         delegateQueue.clear();
@@ -51,11 +93,67 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     }
 
     /*
-    Should be manually synchronized on the queue object
+    Weakly consistent: returns elements present at the time of the call, oldest first,
+    and does not reflect later changes. Iterator remove is not supported, use remove or removeIf.
      */
     @Override
+    @SuppressWarnings("unchecked")
     public Iterator<E> iterator() {
-        return delegateQueue.iterator();
+        return (Iterator<E>) Arrays.asList(toArray()).iterator();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Spliterator<E> spliterator() {
+        return (Spliterator<E>) Spliterators.spliterator(toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /*
+    Action is applied to a snapshot outside the monitor
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super E> action) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        for (Object e : toArray()) {
+            action.accept((E) e);
+        }
+    }
+
+    /*
+    Filter is called while holding the monitor
+     */
+    @Override
+    public synchronized boolean removeIf(Predicate<? super E> filter) {
+        return delegateQueue.removeIf(filter);
+    }
+
+    /*
+    Elements are offered in one critical section, so no other thread's elements are interleaved
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this) {
+            throw new IllegalArgumentException("Queue cannot be added to itself");
+        }
+        // copy outside the monitor, c may be another synchronized collection
+        Object[] added = c.toArray();
+        for (Object e : added) {
+            if (e == null) {
+                throw new NullPointerException("Offered object should not be null");
+            }
+        }
+        boolean changed = false;
+        synchronized (this) {
+            for (Object e : added) {
+                // deduplicating offer may skip some
+                changed |= delegateQueue.offer((E) e);
+            }
+        }
+        return changed;
     }
 
     @Override
@@ -0,0 +1,161 @@
+package queue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+Index of the elements of a deduplicating queue, kept up to date by every insertion and removal,
+so presence is answered without scanning the ring.
+Exact is a hash set of the elements. CountingBloom answers in bounded memory and may report an absent element
+as present, never the opposite; the queue confirms its positives with a scan.
+Elements of a deduplicating queue are distinct, so each is added once and removed once.
+ */
+abstract class DuplicateIndex {
+
+    /*
+    false only if o is not in the queue
+     */
+    abstract boolean mightContain(Object o);
+
+    /*
+    true if mightContain answers are exact
+     */
+    abstract boolean isExact();
+
+    abstract void add(Object o);
+
+    abstract void remove(Object o);
+
+    abstract void clear();
+
+    static final class Exact extends DuplicateIndex {
+
+        private final HashSet<Object> elements = new HashSet<>();
+
+        @Override
+        boolean mightContain(Object o) {
+            return elements.contains(o);
+        }
+
+        @Override
+        boolean isExact() {
+            return true;
+        }
+
+        @Override
+        void add(Object o) {
+            elements.add(o);
+        }
+
+        @Override
+        void remove(Object o) {
+            elements.remove(o);
+        }
+
+        @Override
+        void clear() {
+            elements.clear();
+        }
+    }
+
+    /*
+    Counting Bloom filter with 4-bit counters, 16 to a long. An element increments the counters at HASHES
+    positions derived from its hashCode by double hashing, removal decrements them.
+    A counter that reaches 15 sticks there, decrementing it could hide another element;
+    it only makes the filter a little less selective.
+     */
+    static final class CountingBloom extends DuplicateIndex {
+
+        private static final int HASHES = 4;
+
+        private static final long MAX_COUNT = 15;
+
+        private final long[] counters;
+
+        private final long counterMask;
+
+        /*
+        Sized so that a filter holding capacity elements reports an absent one as present
+        with about falsePositiveRate probability
+         */
+        CountingBloom(int capacity, double falsePositiveRate) {
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new IllegalArgumentException("False positive rate should be in (0, 1)");
+            }
+            // optimal bits per element for HASHES hash functions: -k / ln(1 - p^(1/k))
+            double perElement = -HASHES / Math.log(1 - Math.pow(falsePositiveRate, 1.0 / HASHES));
+            long wanted = (long) Math.ceil(capacity * perElement);
+            long size = Math.max(64, Long.highestOneBit(Math.max(1, wanted - 1)) << 1);
+            if (size > (long) Integer.MAX_VALUE * 16) {
+                throw new IllegalArgumentException("Filter would need more than " + Integer.MAX_VALUE + " words");
+            }
+            counters = new long[(int) (size / 16)];
+            counterMask = size - 1;
+        }
+
+        @Override
+        boolean mightContain(Object o) {
+            long hash = spread(o.hashCode());
+            long step = (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++, hash += step) {
+                if (counter(hash & counterMask) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean isExact() {
+            return false;
+        }
+
+        @Override
+        void add(Object o) {
+            long hash = spread(o.hashCode());
+            long step = (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++, hash += step) {
+                long position = hash & counterMask;
+                long count = counter(position);
+                if (count < MAX_COUNT)
+                    setCounter(position, count + 1);
+            }
+        }
+
+        @Override
+        void remove(Object o) {
+            long hash = spread(o.hashCode());
+            long step = (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++, hash += step) {
+                long position = hash & counterMask;
+                long count = counter(position);
+                if (count > 0 && count < MAX_COUNT)
+                    setCounter(position, count - 1);
+            }
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(counters, 0L);
+        }
+
+        private long counter(long position) {
+            return (counters[(int) (position >>> 4)] >>> ((position & 15) << 2)) & MAX_COUNT;
+        }
+
+        private void setCounter(long position, long count) {
+            int word = (int) (position >>> 4);
+            int shift = (int) (position & 15) << 2;
+            counters[word] = (counters[word] & ~(MAX_COUNT << shift)) | (count << shift);
+        }
+
+        /*
+        hashCode may have few varying bits, mix them over the 64 bits taken by double hashing
+         */
+        private static long spread(int hashCode) {
+            long h = hashCode * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+            h *= 0xBF58476D1CE4E5B9L;
+            return h ^ (h >>> 32);
+        }
+    }
+}
@@ -0,0 +1,741 @@
+package queue;
+
+import queue.codec.Codec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+Disk backed blocking queue keeping the last capacity elements, survives process crash and power loss.
+Elements are appended to rolling segment files, each holding up to segmentCapacity records.
+Segments whose records were all evicted or consumed are deleted.
+
+offer returns once the element is durable. Concurrent offers share a single fsync (group commit),
+syncLinger is how long a committing thread waits for more records to join the batch.
+Creating and deleting segments changes the directory, which is forced too before records are acknowledged.
+
+Consumed position is persisted with each commit, so after a crash elements polled since the last commit
+are delivered again.
+Interrupting a thread using the queue does not close its files, see FileHandle; the interrupt status is kept.
+Iterator is a snapshot and does not support removal.
+ */
+public class DurableMostRecentlyInsertedQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>, Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String HEAD_FILE = "head";
+
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private final File directory;
+
+    private final Codec<E> codec;
+
+    private final int capacity;
+
+    private final int segmentCapacity;
+
+    private final long syncLingerNanos;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private final FileHandle headFile;
+
+    /**
+     * Forced after segments were created or deleted, null where directories cannot be opened (Windows)
+     */
+    private final FileHandle directoryFile;
+
+    /**
+     * Set when a segment was created or deleted since the last commit, guarded by lock
+     */
+    private boolean directoryChanged;
+
+    /**
+     * Sequence number of the oldest retained element
+     */
+    private long head;
+
+    /**
+     * Sequence number the next offered element gets
+     */
+    private long tail;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Serializes commits, holder forces segments while others wait for their records to be covered
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private volatile long durableTail;
+
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(4096);
+
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+
+    private final ByteBuffer headBuffer = ByteBuffer.allocateDirect(8);
+
+    private final CRC32 crc = new CRC32();
+
+    public DurableMostRecentlyInsertedQueue(File directory, int capacity, Codec<E> codec) throws IOException {
+        this(directory, capacity, Math.max(1, capacity / 4), codec, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public DurableMostRecentlyInsertedQueue(File directory, int capacity, int segmentCapacity, Codec<E> codec,
+                                            long syncLinger, TimeUnit unit) throws IOException {
+        if (capacity <= 0 || segmentCapacity <= 0 || syncLinger < 0)
+            throw new IllegalArgumentException();
+        if (codec == null)
+            throw new NullPointerException();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        this.directory = directory;
+        this.capacity = capacity;
+        this.segmentCapacity = segmentCapacity;
+        this.codec = codec;
+        this.syncLingerNanos = unit.toNanos(syncLinger);
+        headFile = new FileHandle(new File(directory, HEAD_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        directoryFile = openDirectory(directory);
+        recover();
+    }
+
+    /*
+    Throws UncheckedIOException if the element could not be written, the queue is then unchanged:
+    a partially written record is truncated away and overwritten by the next offer.
+    An IOException from the commit means the element is in the queue but may not be durable.
+     */
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException("Offered object should not be null");
+        }
+        long sequence;
+        lock.lock();
+        try {
+            append(e);
+            sequence = tail;
+            notEmpty.signal();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(sequence);
+        return true;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer(e);
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return head == tail ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (head == tail)
+                notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanosTimeout = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (head == tail) {
+                if (nanosTimeout <= 0)
+                    return null;
+                nanosTimeout = notEmpty.awaitNanos(nanosTimeout);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return head == tail ? null : read(head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = (int) Math.min(maxElements, tail - head);
+            for (int i = 0; i < n; i++) {
+                c.add(dequeue());
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            head = tail;
+            deleteObsoleteSegments();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (long sequence = head; sequence < tail; sequence++) {
+                snapshot.add(read(sequence));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /*
+    Forces everything offered so far to disk, together with the consumed position
+     */
+    public void sync() {
+        syncLock.lock();
+        try {
+            commit();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.file.close();
+            }
+            segments.clear();
+            headFile.close();
+            if (directoryFile != null) {
+                directoryFile.close();
+            }
+        } finally {
+            lock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    private void append(E e) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null) {
+            throw new ClosedChannelException();
+        }
+        if (segment.count >= segmentCapacity) {
+            // forced by the next commit, outside the lock
+            segment = openSegment(tail);
+            segments.addLast(segment);
+        }
+        ByteBuffer buffer = encode(e);
+        segment.append(buffer);
+        tail++;
+        if (tail - head > capacity) {
+            head = tail - capacity;
+            deleteObsoleteSegments();
+        }
+    }
+
+    private ByteBuffer encode(E e) {
+        while (true) {
+            writeBuffer.clear();
+            writeBuffer.position(RECORD_HEADER_LENGTH);
+            try {
+                codec.encode(e, writeBuffer);
+                break;
+            } catch (BufferOverflowException ex) {
+                writeBuffer = ByteBuffer.allocateDirect(writeBuffer.capacity() * 2);
+            }
+        }
+        int length = writeBuffer.position() - RECORD_HEADER_LENGTH;
+        writeBuffer.flip();
+        writeBuffer.position(RECORD_HEADER_LENGTH);
+        crc.reset();
+        crc.update(writeBuffer);
+        writeBuffer.putInt(0, length);
+        writeBuffer.putInt(4, (int) crc.getValue());
+        writeBuffer.position(0);
+        return writeBuffer;
+    }
+
+    private E dequeue() {
+        E e = read(head);
+        head++;
+        Segment first = segments.peekFirst();
+        if (first != segments.peekLast() && head >= first.base + first.count) {
+            deleteObsoleteSegments();
+        }
+        return e;
+    }
+
+    private E read(long sequence) {
+        Segment segment = segmentOf(sequence);
+        long position = segment.positions[(int) (sequence - segment.base)];
+        try {
+            ByteBuffer buffer = readBuffer;
+            buffer.clear().limit(RECORD_HEADER_LENGTH);
+            segment.readFully(buffer, position);
+            int length = buffer.getInt(0);
+            if (buffer.capacity() < length) {
+                buffer = readBuffer = ByteBuffer.allocateDirect(Math.max(length, buffer.capacity() * 2));
+            }
+            buffer.clear().limit(length);
+            segment.readFully(buffer, position + RECORD_HEADER_LENGTH);
+            buffer.flip();
+            return codec.decode(buffer);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private Segment segmentOf(long sequence) {
+        for (Segment segment : segments) {
+            if (sequence < segment.base + segment.count) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("No segment holds sequence " + sequence);
+    }
+
+    private void deleteObsoleteSegments() {
+        while (segments.size() > 1) {
+            Segment first = segments.peekFirst();
+            if (first.base + first.count > head) {
+                return;
+            }
+            segments.pollFirst();
+            first.delete();
+            directoryChanged = true;
+        }
+    }
+
+    /*
+    Group commit. First thread to find its record not yet durable becomes the leader,
+    lingers to let more records in, then forces them all with one fsync.
+     */
+    private void awaitDurable(long sequence) {
+        if (durableTail >= sequence) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (durableTail >= sequence) {
+                return;
+            }
+            if (syncLingerNanos > 0) {
+                LockSupport.parkNanos(syncLingerNanos);
+            }
+            commit();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void commit() {
+        // assert syncLock.getHoldCount() == 1;
+        long target;
+        long consumed;
+        List<Segment> unforced = new ArrayList<>(2);
+        boolean forceDirectory;
+        lock.lock();
+        try {
+            target = tail;
+            consumed = head;
+            // segments holding records past durableTail, usually the last one, plus those rolled since
+            for (Iterator<Segment> i = segments.descendingIterator(); i.hasNext(); ) {
+                Segment segment = i.next();
+                if (segment.base + segment.count <= durableTail) {
+                    break;
+                }
+                unforced.add(segment);
+            }
+            if (segments.isEmpty()) {
+                unforced = null;
+            }
+            forceDirectory = directoryChanged;
+            directoryChanged = false;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (unforced == null) {
+                // closed, nothing offered since is on disk
+                throw new ClosedChannelException();
+            }
+            for (Segment segment : unforced) {
+                try {
+                    segment.file.apply(channel -> {
+                        channel.force(false);
+                        return null;
+                    });
+                } catch (ClosedChannelException ex) {
+                    // only a deleted segment's records are evicted or consumed, closed by close() they are not durable
+                    if (!segment.deleted) {
+                        throw ex;
+                    }
+                }
+            }
+            if (forceDirectory && directoryFile != null) {
+                // a new segment is lost on power failure until its directory entry is durable
+                directoryFile.force();
+            }
+            headBuffer.clear();
+            headBuffer.putLong(0, consumed);
+            headFile.apply(channel -> {
+                headBuffer.position(0);
+                while (headBuffer.hasRemaining()) {
+                    channel.write(headBuffer, headBuffer.position());
+                }
+                channel.force(false);
+                return null;
+            });
+        } catch (IOException ex) {
+            if (forceDirectory) {
+                lock.lock();
+                try {
+                    directoryChanged = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            throw new UncheckedIOException(ex);
+        }
+        durableTail = target;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null)
+            throw new IOException("Cannot list directory " + directory);
+        for (File file : files) {
+            if (!file.getName().matches("\\d{20}\\" + SEGMENT_SUFFIX))
+                throw new IOException("Not a segment file: " + file);
+        }
+        Arrays.sort(files);
+        boolean truncated = false;
+        for (File file : files) {
+            if (truncated) {
+                // records after a torn write were never acknowledged
+                Files.delete(file.toPath());
+                continue;
+            }
+            long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(file, base, segmentCapacity);
+            truncated = segment.scan();
+            segments.addLast(segment);
+        }
+
+        headBuffer.clear();
+        long persistedHead = headFile.apply(channel -> channel.read(headBuffer, 0)) == 8 ? headBuffer.getLong(0) : 0;
+        if (segments.isEmpty()) {
+            segments.addLast(openSegment(persistedHead));
+        }
+        Segment last = segments.peekLast();
+        tail = last.base + last.count;
+        head = Math.max(Math.max(persistedHead, segments.peekFirst().base), tail - capacity);
+        head = Math.min(head, tail);
+        deleteObsoleteSegments();
+        if (directoryFile != null) {
+            directoryFile.force();
+        }
+        directoryChanged = false;
+        durableTail = tail;
+    }
+
+    private Segment openSegment(long base) throws IOException {
+        File file = new File(directory, String.format("%020d%s", base, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, base, segmentCapacity);
+        directoryChanged = true;
+        return segment;
+    }
+
+    private static FileHandle openDirectory(File directory) {
+        try {
+            return new FileHandle(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private interface ChannelOperation<T> {
+        T apply(FileChannel channel) throws IOException;
+    }
+
+    /*
+    File whose channel survives interrupts. FileChannel closes itself for good when a thread blocked in it
+    is interrupted, which would fail every later operation of the queue. The interrupt status is cleared
+    for each operation and restored after, and a channel closed by an interrupt arriving meanwhile
+    is reopened and the operation repeated, so operations must be repeatable: positional reads and writes are.
+     */
+    private static final class FileHandle {
+
+        private final Path path;
+
+        private final OpenOption[] options;
+
+        private volatile FileChannel channel;
+
+        /**
+         * Set by close, guarded by this
+         */
+        private boolean closed;
+
+        FileHandle(Path path, OpenOption... options) throws IOException {
+            this.path = path;
+            this.options = options;
+            this.channel = FileChannel.open(path, options);
+        }
+
+        /*
+        Throws ClosedChannelException once the handle was closed
+         */
+        <T> T apply(ChannelOperation<T> operation) throws IOException {
+            boolean interrupted = Thread.interrupted();
+            try {
+                while (true) {
+                    FileChannel current = channel;
+                    try {
+                        return operation.apply(current);
+                    } catch (ClosedChannelException ex) {
+                        interrupted |= Thread.interrupted();
+                        reopen(current, ex);
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        void force() throws IOException {
+            apply(channel -> {
+                channel.force(true);
+                return null;
+            });
+        }
+
+        private synchronized void reopen(FileChannel failed, ClosedChannelException ex) throws IOException {
+            if (closed)
+                throw ex;
+            if (channel == failed)
+                channel = FileChannel.open(path, options);
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private final class Segment {
+
+        final FileHandle file;
+
+        /**
+         * Sequence number of the first record
+         */
+        final long base;
+
+        /**
+         * File position of each record, indexed by sequence - base
+         */
+        long[] positions;
+
+        int count;
+
+        long size;
+
+        /**
+         * Set before the channel is closed by delete, so a commit failing on the closed channel knows why
+         */
+        volatile boolean deleted;
+
+        Segment(File file, long base, int capacity) throws IOException {
+            this.base = base;
+            this.positions = new long[capacity];
+            this.file = new FileHandle(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /*
+        On failure truncates back to size, so a partial record never sits between acknowledged ones
+         */
+        void append(ByteBuffer record) throws IOException {
+            int start = record.position();
+            int length = record.remaining();
+            try {
+                file.apply(channel -> {
+                    record.position(start);
+                    long position = size;
+                    while (record.hasRemaining()) {
+                        position += channel.write(record, position);
+                    }
+                    return null;
+                });
+            } catch (IOException ex) {
+                try {
+                    file.apply(channel -> channel.truncate(size));
+                } catch (IOException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+                throw ex;
+            }
+            positions[count++] = size;
+            size += length;
+        }
+
+        void readFully(ByteBuffer buffer, long position) throws IOException {
+            int start = buffer.position();
+            file.apply(channel -> {
+                buffer.position(start);
+                long at = position;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, at);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of segment " + file.path);
+                    }
+                    at += read;
+                }
+                return null;
+            });
+        }
+
+        /*
+        Rebuilds position index, truncates the segment at the first incomplete or corrupted record.
+        Returns true if segment was truncated.
+         */
+        boolean scan() throws IOException {
+            long fileSize = file.apply(FileChannel::size);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            while (size + RECORD_HEADER_LENGTH <= fileSize) {
+                header.clear();
+                readFully(header, size);
+                int length = header.getInt(0);
+                if (length < 0 || size + RECORD_HEADER_LENGTH + length > fileSize) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(payload, size + RECORD_HEADER_LENGTH);
+                crc.reset();
+                crc.update(payload.array(), 0, length);
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+                if (count == positions.length) {
+                    // written with larger segment capacity
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                positions[count++] = size;
+                size += RECORD_HEADER_LENGTH + length;
+            }
+            if (size < fileSize) {
+                file.apply(channel -> {
+                    channel.truncate(size).force(false);
+                    return null;
+                });
+                return true;
+            }
+            return false;
+        }
+
+        void delete() {
+            deleted = true;
+            try {
+                file.close();
+                Files.deleteIfExists(file.path);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.ToLongFunction;
+
+/*
+Keeps capacity newest elements by event time rather than by arrival.
+Binary min-heap on (timestamp, arrival sequence): the oldest event is at the root, so when queue is full
+a late event older than it is rejected in O(1), otherwise inserted in O(log n) evicting the root.
+Poll returns elements in timestamp order, equal timestamps in arrival order.
+Iterator returns elements in no particular order and supports removal. Removing other than the oldest element
+takes O(n) to find it and O(log n) to restore the heap.
+ */
+public class EventTimeMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
+
+    private final ToLongFunction<? super E> timestampExtractor;
+
+    private final Object[] elements;
+
+    private final long[] timestamps;
+
+    private final long[] sequences;
+
+    private int size;
+
+    private long nextSequence;
+
+    public EventTimeMostRecentlyInsertedQueue(int capacity, ToLongFunction<? super E> timestampExtractor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be a positive integer");
+        }
+        if (timestampExtractor == null) {
+            throw new NullPointerException();
+        }
+        this.timestampExtractor = timestampExtractor;
+        elements = new Object[capacity];
+        timestamps = new long[capacity];
+        sequences = new long[capacity];
+    }
+
+    /*
+    Returns false if queue is full and e is older than every buffered element
+     */
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException("Offered object should not be null");
+        }
+        long timestamp = timestampExtractor.applyAsLong(e);
+        long sequence = nextSequence++;
+        if (size < elements.length) {
+            siftUp(size++, e, timestamp, sequence);
+        } else {
+            if (timestamp < timestamps[0]) {
+                return false;
+            }
+            // evict the oldest by replacing the root
+            siftDown(0, e, timestamp, sequence);
+        }
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        if (size == 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        E result = (E) elements[0];
+        int last = --size;
+        Object moved = elements[last];
+        long movedTimestamp = timestamps[last];
+        long movedSequence = sequences[last];
+        elements[last] = null;
+        if (last > 0) {
+            siftDown(0, moved, movedTimestamp, movedSequence);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (o.equals(elements[i])) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return (E) elements[0];
+    }
+
+    /*
+    Timestamp of the oldest buffered event, Long.MIN_VALUE if empty
+     */
+    public long oldestTimestamp() {
+        return size == 0 ? Long.MIN_VALUE : timestamps[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+
+    /*
+    Removal works as in PriorityQueue: the last element moved into the removed slot may sift up before the cursor,
+    it is then remembered and returned after the array is exhausted.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            int cursor;
+
+            /**
+             * Index of the element returned by next, -1 if it came from forgetMeNot or was removed
+             */
+            int lastRet = -1;
+
+            /**
+             * Elements moved before the cursor by removal, not returned yet
+             */
+            ArrayDeque<Object> forgetMeNot;
+
+            Object lastRetElt;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size || (forgetMeNot != null && !forgetMeNot.isEmpty());
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (cursor < size) {
+                    lastRet = cursor;
+                    return (E) elements[cursor++];
+                }
+                if (forgetMeNot != null) {
+                    lastRet = -1;
+                    lastRetElt = forgetMeNot.poll();
+                    if (lastRetElt != null) {
+                        return (E) lastRetElt;
+                    }
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void remove() {
+                if (lastRet != -1) {
+                    Object moved = removeAt(lastRet);
+                    lastRet = -1;
+                    if (moved == null) {
+                        cursor--;
+                    } else {
+                        if (forgetMeNot == null) {
+                            forgetMeNot = new ArrayDeque<>();
+                        }
+                        forgetMeNot.add(moved);
+                    }
+                } else if (lastRetElt != null) {
+                    for (int i = 0; i < size; i++) {
+                        if (elements[i] == lastRetElt) {
+                            removeAt(i);
+                            break;
+                        }
+                    }
+                    lastRetElt = null;
+                } else {
+                    throw new IllegalStateException();
+                }
+            }
+        };
+    }
+
+    /*
+    Fills slot index with the last element and restores the heap. Returns the moved element
+    if it sifted up, to before index, otherwise null.
+     */
+    private Object removeAt(int index) {
+        int last = --size;
+        if (last == index) {
+            elements[last] = null;
+            return null;
+        }
+        Object moved = elements[last];
+        long movedTimestamp = timestamps[last];
+        long movedSequence = sequences[last];
+        elements[last] = null;
+        siftDown(index, moved, movedTimestamp, movedSequence);
+        // sequences are unique, still at index means it did not move down
+        if (sequences[index] == movedSequence) {
+            siftUp(index, moved, movedTimestamp, movedSequence);
+            if (sequences[index] != movedSequence) {
+                return moved;
+            }
+        }
+        return null;
+    }
+
+    private void siftUp(int index, Object e, long timestamp, long sequence) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!less(timestamp, sequence, parent)) {
+                break;
+            }
+            move(parent, index);
+            index = parent;
+        }
+        set(index, e, timestamp, sequence);
+    }
+
+    private void siftDown(int index, Object e, long timestamp, long sequence) {
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && less(timestamps[right], sequences[right], child)) {
+                child = right;
+            }
+            if (!less(timestamps[child], sequences[child], timestamp, sequence)) {
+                break;
+            }
+            move(child, index);
+            index = child;
+        }
+        set(index, e, timestamp, sequence);
+    }
+
+    private boolean less(long timestamp, long sequence, int index) {
+        return less(timestamp, sequence, timestamps[index], sequences[index]);
+    }
+
+    private static boolean less(long timestamp, long sequence, long otherTimestamp, long otherSequence) {
+        return timestamp < otherTimestamp || (timestamp == otherTimestamp && sequence < otherSequence);
+    }
+
+    private void move(int from, int to) {
+        elements[to] = elements[from];
+        timestamps[to] = timestamps[from];
+        sequences[to] = sequences[from];
+    }
+
+    private void set(int index, Object e, long timestamp, long sequence) {
+        elements[index] = e;
+        timestamps[index] = timestamp;
+        sequences[index] = sequence;
+    }
+}
@@ -0,0 +1,129 @@
+package queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Histogram of nanosecond durations in log-linear buckets, as in HdrHistogram: each power of two range is split
+into SUB_BUCKETS linear buckets, so a recorded value is known within 1 / SUB_BUCKETS (about 3%) of itself,
+from 1ns to Long.MAX_VALUE in a fixed array.
+Recording is lock-free, one atomic increment, or a plain ordered write for serialized writers. Reads run concurrently with recording and are weakly consistent.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /*
+    Negative durations, from a clock going backwards, are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.getAndIncrement(bucket(nanos));
+        // CAS only when a new maximum is seen, which gets rare quickly
+        for (long max = this.max.get(); nanos > max; max = this.max.get()) {
+            if (this.max.compareAndSet(max, nanos))
+                break;
+        }
+    }
+
+    /*
+    Same as record for callers already serialized by a lock of their own: plain ordered writes, no atomic
+    read-modify-write. Must not be mixed with concurrent record calls.
+     */
+    void recordSerialized(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int bucket = bucket(nanos);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        if (nanos > max.get())
+            max.lazySet(nanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /*
+    Smallest value v such that percentile percent of recorded values are at most v, within bucket precision.
+    percentile is in [0, 100]. Returns 0 if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        return valuesAtPercentiles(percentile)[0];
+    }
+
+    /*
+    Values at each of the given percentiles, all from the same copy of the counts
+     */
+    public long[] valuesAtPercentiles(double... percentiles) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++)
+            total += snapshot[i] = counts.get(i);
+        long max = this.max.get();
+        long[] values = new long[percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            if (percentiles[p] < 0 || percentiles[p] > 100)
+                throw new IllegalArgumentException("Percentile should be in [0, 100]");
+            if (total == 0)
+                continue;
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+            values[p] = max;
+            for (int i = 0; i < snapshot.length; i++) {
+                rank -= snapshot[i];
+                if (rank <= 0) {
+                    values[p] = Math.min(highestEquivalentValue(i), max);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        long[] p = valuesAtPercentiles(50, 90, 99, 99.9, 100);
+        return String.format("count=%d p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns",
+                count(), p[0], p[1], p[2], p[3], p[4]);
+    }
+
+    /*
+    Values below SUB_BUCKETS have a bucket each. Value with highest bit e >= SUB_BUCKET_BITS goes to
+    range e - SUB_BUCKET_BITS + 1, sub-bucket given by its SUB_BUCKET_BITS bits following the highest one.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestEquivalentValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -1,28 +1,200 @@
 package queue;
 
+import queue.codec.Codec;
+import queue.codec.SnapshotStream;
+
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+Field layout of MostRecentlyInsertedBlockingQueue.
+JVM lays out superclass fields before subclass ones, so padding classes in between keep
+read-mostly fields, consumer side fields and producer side fields on separate cache lines
+(128 bytes, to also cover adjacent line prefetch). Readers of one group do not get their line
+invalidated by writers of another.
+ */
+abstract class BlockingQueueLeftPad<E> extends AbstractQueue<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07, p08, p09, p0a, p0b, p0c, p0d, p0e, p0f;
+}
+
+abstract class BlockingQueueColdFields<E> extends BlockingQueueLeftPad<E> {
+
+    /**
+     * Ring of capacity slots split into chunks of CHUNK_SIZE slots. A chunk is allocated by the first offer
+     * writing into it, null until then and again after it was released empty.
+     */
+    Object[][] chunks;
+
+    int capacity;
+
+    /**
+     * Number of slots in allocated chunks
+     */
+    int allocatedSlots;
+
+    /**
+     * Idle release, 0 unless enabled: chunks without elements are released when occupancy stayed below
+     * half of allocatedSlots for releaseIdleNanos
+     */
+    long releaseIdleNanos;
+
+    /**
+     * Set by offer when occupancy reaches half of allocatedSlots, cleared by every idle check
+     */
+    boolean occupancyHigh;
+
+    ReentrantLock lock;
+
+    Condition notEmpty;
+
+    /**
+     * Waited on by takeBatch until enough elements are available
+     */
+    Condition batchAvailable;
+
+    /**
+     * Coalescing mode: offers signal waiters once per signalBatch elements or signalDelayNanos,
+     * whichever comes first. Waiters wake up at least every signalDelayNanos, so elements are never
+     * left behind for longer than that.
+     */
+    int signalBatch = 1;
+
+    long signalDelayNanos;
+
+    /**
+     * Keys of selectors this queue is registered with, null if none
+     */
+    QueueSelector.Key[] selectionKeys;
+
+    /**
+     * capacity - 1 if capacity is a power of two, -1 otherwise
+     */
+    int mask;
+
+    /**
+     * Seqlock for optimistic snapshots, null unless enabled. Held for writing, inside the main lock, by every
+     * change to the elements between head and tail. Offers that do not evict only write past tail and skip it.
+     */
+    StampedLock snapshotLock;
+
+    /**
+     * Latency tracking, null unless enabled: System.nanoTime of each offer in the slot parallel to its element
+     */
+    long[] timestamps;
+
+    LatencyHistogram residenceTimes;
+
+    LatencyHistogram evictionAges;
+}
+
+abstract class BlockingQueueColdFieldsPad<E> extends BlockingQueueColdFields<E> {
+    long p10, p11, p12, p13, p14, p15, p16, p17, p18, p19, p1a, p1b, p1c, p1d, p1e, p1f;
+}
+
+abstract class BlockingQueueConsumerFields<E> extends BlockingQueueColdFieldsPad<E> {
+
+    int head;
+
+    /**
+     * Number of elements ever removed from the head, including evicted ones.
+     * Written under the lock with lazySet, read without the lock by size, isEmpty and peek.
+     */
+    volatile long headSequence;
+
+    /**
+     * Number of threads waiting on notEmpty, offer does not signal when there are none
+     */
+    int notEmptyWaiters;
+
+    /**
+     * Number of threads waiting on batchAvailable
+     */
+    int batchWaiters;
+
+    /**
+     * Pending futures of pollAsync and takeBatchAsync, oldest first, null until first used.
+     * Not empty only while the queue is empty.
+     */
+    ArrayDeque<MostRecentlyInsertedBlockingQueue.AsyncTake<?>> asyncWaiters;
+
+    /**
+     * Threads parked in take or timed poll, oldest first, null until first used. Offer hands an element
+     * straight to the oldest one instead of writing it to the ring. Not empty only while the queue is empty.
+     */
+    ArrayDeque<MostRecentlyInsertedBlockingQueue.TakeWaiter> takeWaiters;
+}
+
+abstract class BlockingQueueConsumerFieldsPad<E> extends BlockingQueueConsumerFields<E> {
+    long p20, p21, p22, p23, p24, p25, p26, p27, p28, p29, p2a, p2b, p2c, p2d, p2e, p2f;
+}
+
+abstract class BlockingQueueProducerFields<E> extends BlockingQueueConsumerFieldsPad<E> {
+
+    int tail;
+
+    /**
+     * Number of elements ever written to the ring, less those removed from the middle by remove(Object).
+     * Elements offer hands straight to a waiting take never advance it, readFrom may advance it past
+     * the restored elements to keep it in step with tail.
+     * Written under the lock with lazySet, read without the lock by size, isEmpty and peek.
+     */
+    volatile long tailSequence;
+
+    int unsignalledOffers;
+
+    long firstUnsignalledOfferNanos;
+}
+
+abstract class BlockingQueueProducerFieldsPad<E> extends BlockingQueueProducerFields<E> {
+    long p30, p31, p32, p33, p34, p35, p36, p37, p38, p39, p3a, p3b, p3c, p3d, p3e, p3f;
+}
 
 /*
 Blocking queue based on array.
 Insertion blocking operations are not supported because queue always accept new elements and evict the oldest ones.
 Iteration mechanics copied from java.util.concurrent.ArrayBlockingQueue.
+Size is the difference of head and tail sequences. When capacity is a power of two indices wrap with a mask.
+Head index always equals head sequence modulo capacity, same for tail.
+The array is split into chunks allocated as the queue fills, so a large capacity costs memory only once used.
+Slots outside the elements between head and tail are always null, a chunk with no element can be released
+(see the idle release constructor) and is allocated again when offers get back to it. Indices never move,
+so chunks come and go without disturbing iterators.
+size, isEmpty and peek read published sequences without taking the lock and are weakly consistent:
+the result was true at some moment during the call.
  */
-public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+public class MostRecentlyInsertedBlockingQueue<E> extends BlockingQueueProducerFieldsPad<E> implements BlockingQueue<E> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<BlockingQueueConsumerFields> HEAD_SEQUENCE =
+            AtomicLongFieldUpdater.newUpdater(BlockingQueueConsumerFields.class, "headSequence");
 
-    private Object[] elements;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<BlockingQueueProducerFields> TAIL_SEQUENCE =
+            AtomicLongFieldUpdater.newUpdater(BlockingQueueProducerFields.class, "tailSequence");
 
-    private int head;
+    private static final int SNAPSHOT_RETRIES = 8;
 
-    private int tail;
+    private static final int CHUNK_SHIFT = 10;
 
-    private ReentrantLock lock;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
 
-    private Condition notEmpty;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
 
     transient Itrs itrs = null;
 
@@ -33,9 +205,48 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
     public MostRecentlyInsertedBlockingQueue(int capacity, boolean fair) {
         if (capacity <= 0)
             throw new IllegalArgumentException();
-        elements = new Object[capacity];
+        this.capacity = capacity;
+        chunks = new Object[(capacity + CHUNK_MASK) >>> CHUNK_SHIFT][];
+        mask = (capacity & (capacity - 1)) == 0 ? capacity - 1 : -1;
         lock = new ReentrantLock(fair);
         notEmpty = lock.newCondition();
+        batchAvailable = lock.newCondition();
+    }
+
+    /*
+    Creates queue with optimistic snapshots enabled when optimisticSnapshots is true, see snapshot().
+     */
+    public MostRecentlyInsertedBlockingQueue(int capacity, boolean fair, boolean optimisticSnapshots) {
+        this(capacity, fair);
+        if (optimisticSnapshots)
+            snapshotLock = new StampedLock();
+    }
+
+    /*
+    Creates queue in coalescing signalling mode, for high-rate producers.
+    Consumer wake-up is delayed by at most signalDelay.
+     */
+    public MostRecentlyInsertedBlockingQueue(int capacity, boolean fair, int signalBatch, long signalDelay, TimeUnit unit) {
+        this(capacity, fair);
+        if (signalBatch <= 0 || signalDelay <= 0)
+            throw new IllegalArgumentException();
+        this.signalBatch = signalBatch;
+        this.signalDelayNanos = unit.toNanos(signalDelay);
+    }
+
+    /*
+    Creates queue releasing memory it no longer needs: every releaseIdle, if occupancy stayed below half of
+    the allocated slots since the previous check, chunks holding no element are released.
+    Checks run on a daemon thread shared by all queues, which does not keep the queue reachable.
+     */
+    public MostRecentlyInsertedBlockingQueue(int capacity, boolean fair, long releaseIdle, TimeUnit unit) {
+        this(capacity, fair);
+        if (releaseIdle <= 0)
+            throw new IllegalArgumentException();
+        releaseIdleNanos = unit.toNanos(releaseIdle);
+        IdleCheck check = new IdleCheck(this);
+        check.future = SharedTimer.INSTANCE.scheduleWithFixedDelay(check, releaseIdleNanos, releaseIdleNanos,
+                TimeUnit.NANOSECONDS);
     }
 
 
@@ -44,38 +255,52 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
         Object[] a;
         lock.lock();
         try {
-            int size = size();
+            int size = count();
             a = new Object[size];
-            int fromHeadToBorder = elements.length - head;
-            if (size <= fromHeadToBorder)
-                System.arraycopy(elements, head, a, 0, size);
-            else {
-                System.arraycopy(elements, head, a, 0, fromHeadToBorder);
-                System.arraycopy(elements, 0, a, fromHeadToBorder, size - fromHeadToBorder);
-            }
+            copyOut(chunks, head, a, 0, size);
         } finally {
             lock.unlock();
         }
         return a;
     }
 
+    /*
+    Copy of the elements, oldest first.
+    With optimistic snapshots enabled the copy is taken without the lock and validated afterwards, so producers
+    are never blocked by readers. After SNAPSHOT_RETRIES failed validations falls back to toArray().
+     */
+    public Object[] snapshot() {
+        final StampedLock snapshotLock = this.snapshotLock;
+        if (snapshotLock != null) {
+            for (int attempt = 0; attempt < SNAPSHOT_RETRIES; attempt++) {
+                long stamp = snapshotLock.tryOptimisticRead();
+                if (stamp == 0L)
+                    continue;
+                final Object[][] chunks = this.chunks;
+                final long headSequence = this.headSequence;
+                final long size = tailSequence - headSequence;
+                if (size < 0 || size > capacity)
+                    continue;
+                Object[] a = new Object[(int) size];
+                copyOut(chunks, index(headSequence), a, 0, a.length);
+                if (snapshotLock.validate(stamp))
+                    return a;
+            }
+        }
+        return toArray();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <T> T[] toArray(T[] a) {
         lock.lock();
         try {
-            final int size = size();
+            final int size = count();
             final int len = a.length;
             if (len < size)
                 a = (T[]) java.lang.reflect.Array.newInstance(
                         a.getClass().getComponentType(), size);
-            int fromHeadToBorder = elements.length - tail;
-            if (size <= fromHeadToBorder)
-                System.arraycopy(elements, head, a, 0, size);
-            else {
-                System.arraycopy(elements, head, a, 0, fromHeadToBorder);
-                System.arraycopy(elements, 0, a, fromHeadToBorder, size - fromHeadToBorder);
-            }
+            copyOut(chunks, head, a, 0, size);
             if (len > size)
                 a[size] = null;
         } finally {
@@ -90,12 +315,12 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
             return false;
         lock.lock();
         try {
-            if (elements[head] == null) {
+            if (headSequence == tailSequence) {
                 return false;
             }
             int i = head;
             do {
-                if (o.equals(elements[i])) {
+                if (o.equals(element(i))) {
                     removeAt(i);
                     return true;
                 }
@@ -117,34 +342,131 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
         return offer(e);
     }
 
+    /*
+    On an empty queue waits outside the lock for an offer to hand an element over directly, so the element
+    never goes through the ring and is received without taking the lock again.
+    In coalescing mode waits on the condition instead, so that wake-ups stay batched.
+     */
     @Override
     public E take() throws InterruptedException {
+        TakeWaiter waiter;
         lock.lockInterruptibly();
         try {
-            while (elements[head] == null)
-                notEmpty.await();
-            return dequeue();
+            if (headSequence != tailSequence)
+                return dequeue();
+            if (signalDelayNanos > 0) {
+                while (headSequence == tailSequence)
+                    awaitNotEmpty();
+                return dequeue();
+            }
+            waiter = addTakeWaiter();
         } finally {
             lock.unlock();
         }
+        return awaitHandOff(waiter, false, 0L);
     }
 
+    /*
+    Waits for a hand-off as take does
+     */
     @Override
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
         long nanosTimeout = unit.toNanos(timeout);
+        TakeWaiter waiter;
         lock.lockInterruptibly();
         try {
-            while (elements[head] == null) {
-                if (nanosTimeout <= 0)
-                    return null;
-                nanosTimeout = notEmpty.awaitNanos(nanosTimeout);
+            if (headSequence != tailSequence)
+                return dequeue();
+            if (nanosTimeout <= 0)
+                return null;
+            if (signalDelayNanos > 0) {
+                while (headSequence == tailSequence) {
+                    if (nanosTimeout <= 0)
+                        return null;
+                    nanosTimeout = awaitNotEmpty(nanosTimeout);
+                }
+                return dequeue();
             }
-            return dequeue();
+            waiter = addTakeWaiter();
+        } finally {
+            lock.unlock();
+        }
+        return awaitHandOff(waiter, true, nanosTimeout);
+    }
+
+    /*
+    Waits until at least min elements are available or timeout expires, then moves up to max elements
+    to dst in one critical section, oldest first.
+    min should not exceed capacity.
+    On timeout returns whatever is available, possibly nothing.
+    Returns number of moved elements.
+     */
+    public int takeBatch(E[] dst, int min, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        if (dst == null) {
+            throw new NullPointerException();
+        }
+        if (min < 0 || max < min || max > dst.length) {
+            throw new IllegalArgumentException();
+        }
+        if (min > capacity) {
+            // could never be satisfied, would always wait out the timeout
+            throw new IllegalArgumentException("min " + min + " exceeds capacity " + capacity);
+        }
+        long nanosTimeout = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            if (count() < min) {
+                batchWaiters++;
+                try {
+                    while (count() < min && nanosTimeout > 0)
+                        nanosTimeout = batchAvailable.awaitNanos(nanosTimeout);
+                } finally {
+                    batchWaiters--;
+                }
+            }
+            return dequeueBulk(dst, 0, Math.min(max, count()));
         } finally {
             lock.unlock();
         }
     }
 
+    /*
+    Future of the oldest element, completed as soon as one is available. No thread waits for it:
+    the future is completed by the producer that offers the element, after it released the lock.
+    Cancelling the future withdraws the request, an element is never assigned to a cancelled future.
+     */
+    public CompletableFuture<E> pollAsync() {
+        return takeAsync(0, Long.MAX_VALUE, null);
+    }
+
+    /*
+    Like pollAsync, completed with null if no element becomes available within timeout.
+    If executor is not null, the future is completed on it rather than in the producer thread.
+    Timeouts are fired by one daemon thread shared by all queues, dependent stages of a timed out
+    future run on it unless executor is given.
+     */
+    public CompletableFuture<E> pollAsync(long timeout, TimeUnit unit, Executor executor) {
+        return takeAsync(0, unit.toNanos(timeout), executor);
+    }
+
+    /*
+    Future of up to max oldest elements, completed as soon as at least one is available.
+     */
+    public CompletableFuture<List<E>> takeBatchAsync(int max) {
+        return takeBatchAsync(max, Long.MAX_VALUE, TimeUnit.NANOSECONDS, null);
+    }
+
+    /*
+    Like takeBatchAsync, completed with an empty list if no element becomes available within timeout.
+    Executor is used as in pollAsync.
+     */
+    public CompletableFuture<List<E>> takeBatchAsync(int max, long timeout, TimeUnit unit, Executor executor) {
+        if (max <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return takeAsync(max, unit.toNanos(timeout), executor);
+    }
+
     @Override
     public int remainingCapacity() {
         return Integer.MAX_VALUE;
@@ -168,24 +490,11 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
         }
         lock.lock();
         try {
-            int elementsToTransferNumber = Math.min(maxElements, size());
-            int i = 0;
-            try {
-                while (i < elementsToTransferNumber) {
-                    c.add(dequeue());
-                    i++;
-                }
-                return elementsToTransferNumber;
-            } finally {
-                if (i > 0) {
-                    if (itrs != null) {
-                        if (elements[head] == null)
-                            itrs.queueIsEmpty();
-                        else if (i > tail)
-                            itrs.takeIndexWrapped();
-                    }
-                }
-            }
+            // dequeue notifies iterators of every removed element
+            int elementsToTransferNumber = Math.min(maxElements, count());
+            for (int i = 0; i < elementsToTransferNumber; i++)
+                c.add(dequeue());
+            return elementsToTransferNumber;
         } finally {
             lock.unlock();
         }
@@ -196,17 +505,63 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
         if (e == null) {
             throw new NullPointerException("Offered object should not be null");
         }
+        AsyncTake<?> assigned = null;
+        TakeWaiter handedOff = null;
+        // clock read outside the critical section, racy check only decides whether to read it early
+        long now = timestamps != null ? System.nanoTime() : 0L;
         lock.lock();
         try {
-            if (head == tail && elements[head] != null) {
+            if (headSequence == tailSequence && takeWaiters != null && !takeWaiters.isEmpty()
+                    && (handedOff = handOff(e)) != null) {
+                // e never was in the queue, nothing to publish or signal
+                if (timestamps != null)
+                    residenceTimes.recordSerialized(0L);
+                return true;
+            }
+            if (timestamps != null && now == 0L)
+                now = System.nanoTime();
+            if (releaseIdleNanos > 0 && !occupancyHigh && count() >= allocatedSlots >>> 1)
+                occupancyHigh = true;
+            if (tailSequence - headSequence == capacity) {
+                long stamp = beginWrite();
+                // tail before head, so lock-free size never sees the evicted element gone before e arrived,
+                // and the shared slot last, so lock-free peek never sees e at the old head
+                publishTail(tailSequence + 1);
+                publishHead(headSequence + 1);
+                setElement(tail, e);
+                if (timestamps != null) {
+                    evictionAges.recordSerialized(now - timestamps[tail]);
+                    timestamps[tail] = now;
+                }
                 head = cyclicIncrement(head);
+                tail = cyclicIncrement(tail);
+                endWrite(stamp);
+                if (itrs != null)
+                    itrs.elementDequeued();
+            } else {
+                setElement(tail, e);
+                if (timestamps != null)
+                    timestamps[tail] = now;
+                tail = cyclicIncrement(tail);
+                publishTail(tailSequence + 1);
+                if (asyncWaiters != null && !asyncWaiters.isEmpty()) {
+                    assigned = assignAsyncWaiters();
+                    if (headSequence == tailSequence)
+                        return true;
+                }
             }
-            elements[tail] = e;
-            tail = cyclicIncrement(tail);
-            notEmpty.signal();
+            signalNotEmpty();
+            if (batchWaiters > 0)
+                batchAvailable.signalAll();
+            if (selectionKeys != null)
+                notifySelectors();
             return true;
         } finally {
             lock.unlock();
+            if (handedOff != null)
+                LockSupport.unpark(handedOff.thread);
+            if (assigned != null)
+                AsyncTake.deliverAll(assigned);
         }
     }
 
@@ -214,58 +569,198 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
     public E poll() {
         lock.lock();
         try {
-            return elements[head] == null ? null : dequeue();
+            return headSequence == tailSequence ? null : dequeue();
         } finally {
             lock.unlock();
         }
 
     }
 
+    /*
+    Best effort, does not take the lock. Retries if head moved while the slot was read.
+     */
     @Override
     public E peek() {
-        lock.lock();
-        try {
-            if (elements[head] == null) {
+        while (true) {
+            final long headSequence = this.headSequence;
+            if (headSequence == tailSequence) {
                 return null;
             }
+            // a chunk released or swapped by readFrom meanwhile reads as null or stale, caught by the head check
+            final int index = index(headSequence);
+            final Object[] chunk = chunks[index >>> CHUNK_SHIFT];
             @SuppressWarnings("unchecked")
-            E headElement = (E) elements[head];
-            return headElement;
+            E headElement = chunk == null ? null : (E) chunk[index & CHUNK_MASK];
+            if (headElement != null && headSequence == this.headSequence) {
+                return headElement;
+            }
+        }
+    }
+
+    /*
+    Newest element, null if queue is empty
+     */
+    public E peekLatest() {
+        lock.lock();
+        try {
+            return headSequence == tailSequence ? null : itemAt(cyclicDecrement(tail));
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public Iterator<E> iterator() {
-        return new Itr();
+    /*
+    Removes and returns newest element, null if queue is empty
+     */
+    public E pollLatest() {
+        lock.lock();
+        try {
+            return headSequence == tailSequence ? null : removeLatest();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    @Override
-    public int size() {
+    /*
+    Removes and returns newest element, waiting for one if queue is empty
+     */
+    public E takeLatest() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (headSequence == tailSequence)
+                awaitNotEmpty();
+            return removeLatest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Removes up to maxElements newest elements and adds them to c, oldest of them first.
+    Older elements stay in the queue.
+     */
+    public int drainLatest(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException();
+        }
         lock.lock();
         try {
-            int size;
+            int n = Math.min(maxElements, count());
+            int i = tail;
+            for (int k = 0; k < n; k++)
+                i = cyclicDecrement(i);
+            for (int k = 0; k < n; k++, i = cyclicIncrement(i))
+                c.add(itemAt(i));
+            for (int k = 0; k < n; k++)
+                removeLatest();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (tail > head) {
-                size = tail - head;
-            } else if (tail == head) {
-                size = elements[head] == null ? 0 : elements.length;
-            } else {
-                size = elements.length - head + tail;
-            }
+    /*
+    Starts recording how long elements stay in the queue until taken, and how old they are when evicted.
+    Elements already in the queue count from now. Costs a clock read and a histogram update per offer and take.
+    Residence is recorded by take, poll, drainTo, takeBatch, async takes and the newest-first operations,
+    not by remove.
+     */
+    public void enableLatencyTracking() {
+        lock.lock();
+        try {
+            if (timestamps != null)
+                return;
+            residenceTimes = new LatencyHistogram();
+            evictionAges = new LatencyHistogram();
+            long[] timestamps = new long[capacity];
+            Arrays.fill(timestamps, System.nanoTime());
+            this.timestamps = timestamps;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            return size;
+    /*
+    Time from offer to take, null unless latency tracking is enabled
+     */
+    public LatencyHistogram residenceTimes() {
+        lock.lock();
+        try {
+            return residenceTimes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Age of elements evicted by offer, null unless latency tracking is enabled
+     */
+    public LatencyHistogram evictionAges() {
+        lock.lock();
+        try {
+            return evictionAges;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Number of slots currently backed by memory, between 0 and capacity
+     */
+    public int allocatedCapacity() {
+        lock.lock();
+        try {
+            return allocatedSlots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Releases chunks holding no element right away, whatever the occupancy.
+    Returns number of released slots.
+     */
+    public int releaseUnusedChunks() {
+        lock.lock();
+        try {
+            return releaseChunks();
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    @Override
+    public int size() {
+        // head first, tail only grows past it meanwhile
+        final long headSequence = this.headSequence;
+        return (int) Math.min(tailSequence - headSequence, capacity);
+    }
+
     @Override
     public boolean isEmpty() {
+        return headSequence == tailSequence;
+    }
+
+    /*
+    Emptiness checked under the lock. Offers publish tail with an ordered store, not a full fence, before reading
+    the selector ready flag, so lock-free isEmpty may see a stale tail right after the flag was lowered.
+    QueueSelector checks with this instead.
+     */
+    boolean isEmptyLocked() {
         lock.lock();
         try {
-            return elements[head] == null;
+            return headSequence == tailSequence;
         } finally {
             lock.unlock();
         }
@@ -275,9 +770,14 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
     public void clear() {
         lock.lock();
         try {
-            head = 0;
-            tail = 0;
-            Arrays.fill(elements, null);
+            long stamp = beginWrite();
+            head = tail;
+            publishHead(tailSequence);
+            for (Object[] chunk : chunks) {
+                if (chunk != null)
+                    Arrays.fill(chunk, null);
+            }
+            endWrite(stamp);
             if (itrs != null)
                 itrs.queueIsEmpty();
         } finally {
@@ -291,11 +791,11 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
             return false;
         lock.lock();
         try {
-            if (elements[head] == null)
+            if (headSequence == tailSequence)
                 return false;
             int i = head;
             do {
-                if (o.equals(elements[i]))
+                if (o.equals(element(i)))
                     return true;
                 i = cyclicIncrement(i);
             } while (i != tail);
@@ -309,14 +809,14 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
     public String toString() {
         lock.lock();
         try {
-            if (elements[head] == null) {
+            if (headSequence == tailSequence) {
                 return "[]";
             }
-            int size = size();
+            int size = count();
             StringBuilder sb = new StringBuilder();
             sb.append('[');
             for (int i = head; ; i = cyclicIncrement(i)) {
-                sb.append(elements[i]);
+                sb.append(element(i));
                 if (--size == 0) {
                     return sb.append("]").toString();
                 }
@@ -327,20 +827,697 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
         }
     }
 
+    public int writeTo(WritableByteChannel channel, Codec<? super E> codec) throws IOException {
+        return writeTo(channel, codec, false);
+    }
+
+    /*
+    Writes a snapshot of the queue contents. Elements are copied under the lock once,
+    encoding and I/O happen after the lock is released.
+    Returns number of written elements.
+     */
+    public int writeTo(WritableByteChannel channel, Codec<? super E> codec, boolean compress) throws IOException {
+        Object[] snapshot = toArray();
+        SnapshotStream.write(channel, snapshot, codec, compress);
+        return snapshot.length;
+    }
+
+    /*
+    Replaces queue contents with a snapshot written by writeTo.
+    Snapshot is decoded outside the lock straight into new chunks, which are then swapped in.
+    A chunk is allocated by the first element decoded into it, so a small snapshot of a large queue
+    allocates only the chunks it fills, as offer would.
+    If snapshot holds more elements than capacity, the oldest ones are dropped as offer would do.
+    Returns number of elements in the queue after restore.
+     */
+    public int readFrom(ReadableByteChannel channel, Codec<? extends E> codec) throws IOException {
+        Object[][] restored = new Object[chunks.length][];
+        int count = SnapshotStream.read(channel, codec, capacity, (slot, value) -> {
+            Object[] chunk = restored[slot >>> CHUNK_SHIFT];
+            if (chunk == null) {
+                int length = Math.min(CHUNK_SIZE, capacity - (slot & ~CHUNK_MASK));
+                restored[slot >>> CHUNK_SHIFT] = chunk = new Object[length];
+            }
+            chunk[slot & CHUNK_MASK] = value;
+        });
+        int restoredSlots = 0;
+        for (Object[] chunk : restored) {
+            if (chunk != null)
+                restoredSlots += chunk.length;
+        }
+        AsyncTake<?> assigned = null;
+        TakeWaiter handedOff = null;
+        lock.lock();
+        try {
+            long stamp = beginWrite();
+            chunks = restored;
+            allocatedSlots = restoredSlots;
+            if (timestamps != null)
+                Arrays.fill(timestamps, System.nanoTime());
+            tail = count % capacity;
+            head = count < capacity ? 0 : tail;
+            long retained = Math.min(count, capacity);
+            long newTailSequence = tailSequence + retained;
+            newTailSequence += Math.floorMod(tail - newTailSequence, (long) capacity);
+            publishTail(newTailSequence);
+            publishHead(newTailSequence - retained);
+            endWrite(stamp);
+            if (itrs != null)
+                itrs.queueIsEmpty();
+            if (count > 0) {
+                if (takeWaiters != null && !takeWaiters.isEmpty())
+                    handedOff = handOffQueued();
+                if (asyncWaiters != null && !asyncWaiters.isEmpty())
+                    assigned = assignAsyncWaiters();
+                notEmpty.signalAll();
+                batchAvailable.signalAll();
+                if (selectionKeys != null)
+                    notifySelectors();
+            }
+            return count();
+        } finally {
+            lock.unlock();
+            TakeWaiter.unparkAll(handedOff);
+            if (assigned != null)
+                AsyncTake.deliverAll(assigned);
+        }
+    }
+
     private E dequeue() {
         @SuppressWarnings("unchecked")
-        E headElement = (E) elements[head];
-        elements[head] = null;
+        E headElement = (E) element(head);
+        if (timestamps != null)
+            residenceTimes.recordSerialized(System.nanoTime() - timestamps[head]);
+        long stamp = beginWrite();
+        setElement(head, null);
         head = cyclicIncrement(head);
+        publishHead(headSequence + 1);
+        endWrite(stamp);
         if (itrs != null)
             itrs.elementDequeued();
         return headElement;
     }
 
+    /*
+    Moves n oldest elements to dst starting at offset. Called with lock held, n should not exceed count().
+     */
+    private int dequeueBulk(Object[] dst, int offset, int n) {
+        if (n == 0)
+            return 0;
+        final int fromHeadToBorder = capacity - head;
+        if (timestamps != null) {
+            // one clock read for the whole batch
+            long now = System.nanoTime();
+            for (int k = 0, i = head; k < n; k++, i = cyclicIncrement(i))
+                residenceTimes.recordSerialized(now - timestamps[i]);
+        }
+        long stamp = beginWrite();
+        copyOut(chunks, head, dst, offset, n);
+        clearSlots(head, n);
+        head = n < fromHeadToBorder ? head + n : n - fromHeadToBorder;
+        publishHead(headSequence + n);
+        endWrite(stamp);
+        if (itrs != null) {
+            if (headSequence == tailSequence)
+                itrs.queueIsEmpty();
+            else if (n >= fromHeadToBorder)
+                itrs.takeIndexWrapped();
+        }
+        return n;
+    }
+
+    /*
+    max is 0 for a single element, otherwise the batch size
+     */
+    private <T> CompletableFuture<T> takeAsync(int max, long nanosTimeout, Executor executor) {
+        AsyncTake<T> take = new AsyncTake<>(this, max, executor);
+        lock.lock();
+        try {
+            if (headSequence == tailSequence && nanosTimeout > 0) {
+                if (asyncWaiters == null)
+                    asyncWaiters = new ArrayDeque<>();
+                asyncWaiters.add(take);
+                if (nanosTimeout != Long.MAX_VALUE)
+                    take.timeout = SharedTimer.INSTANCE.schedule(take::expire, nanosTimeout, TimeUnit.NANOSECONDS);
+                return take;
+            }
+            take.assign();
+            take.result = headSequence == tailSequence ? take.emptyResult() : takeAssigned(max);
+        } finally {
+            lock.unlock();
+        }
+        // available right away, complete in the calling thread
+        take.completeAssigned();
+        return take;
+    }
+
+    /*
+    Called with lock held after elements were added. Hands elements to pending async takes, oldest take first.
+    Returns chain of assigned takes, to be delivered once the lock is released.
+     */
+    private AsyncTake<?> assignAsyncWaiters() {
+        AsyncTake<?> first = null;
+        AsyncTake<?> last = null;
+        AsyncTake<?> take;
+        while (headSequence != tailSequence && (take = asyncWaiters.poll()) != null) {
+            if (!take.assign())
+                continue;
+            take.result = takeAssigned(take.max);
+            if (last == null)
+                first = take;
+            else
+                last.next = take;
+            last = take;
+        }
+        return first;
+    }
+
+    private Object takeAssigned(int max) {
+        if (max == 0)
+            return dequeue();
+        Object[] batch = new Object[Math.min(max, count())];
+        dequeueBulk(batch, 0, batch.length);
+        return Arrays.asList(batch);
+    }
+
+    private TakeWaiter addTakeWaiter() {
+        if (takeWaiters == null)
+            takeWaiters = new ArrayDeque<>();
+        TakeWaiter waiter = new TakeWaiter(Thread.currentThread());
+        takeWaiters.add(waiter);
+        return waiter;
+    }
+
+    /*
+    Called by offer with lock held on an empty queue. Gives e to the oldest waiter still waiting.
+    Returns that waiter, to be unparked once the lock is released, or null if all had given up.
+     */
+    private TakeWaiter handOff(Object e) {
+        TakeWaiter waiter;
+        while ((waiter = takeWaiters.poll()) != null) {
+            waiter.item = e;
+            if (waiter.match())
+                return waiter;
+            waiter.item = null;
+        }
+        return null;
+    }
+
+    /*
+    Called with lock held after elements were added in bulk. Hands queued elements to waiters, oldest first.
+    Returns chain of matched waiters, to be unparked once the lock is released.
+     */
+    private TakeWaiter handOffQueued() {
+        TakeWaiter first = null;
+        TakeWaiter last = null;
+        TakeWaiter waiter;
+        while (headSequence != tailSequence && (waiter = takeWaiters.poll()) != null) {
+            waiter.item = element(head);
+            if (!waiter.match()) {
+                waiter.item = null;
+                continue;
+            }
+            dequeue();
+            if (last == null)
+                first = waiter;
+            else
+                last.next = waiter;
+            last = waiter;
+        }
+        return first;
+    }
+
+    /*
+    Parks until an offer hands an element over, the thread is interrupted or timeout expires.
+    An element handed over before the waiter could give up is returned, with interrupt status kept.
+     */
+    @SuppressWarnings("unchecked")
+    private E awaitHandOff(TakeWaiter waiter, boolean timed, long nanosTimeout) throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanosTimeout : 0L;
+        while (!waiter.isMatched()) {
+            if (Thread.interrupted()) {
+                if (waiter.cancel()) {
+                    removeTakeWaiter(waiter);
+                    throw new InterruptedException();
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (timed) {
+                nanosTimeout = deadline - System.nanoTime();
+                if (nanosTimeout <= 0) {
+                    if (waiter.cancel()) {
+                        removeTakeWaiter(waiter);
+                        return null;
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, nanosTimeout);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return (E) waiter.item;
+    }
+
+    private void removeTakeWaiter(TakeWaiter waiter) {
+        lock.lock();
+        try {
+            // the waiter giving up is usually the newest one
+            takeWaiters.removeLastOccurrence(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeAsyncWaiter(AsyncTake<?> take) {
+        lock.lock();
+        try {
+            if (asyncWaiters != null)
+                asyncWaiters.remove(take);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E removeLatest() {
+        int last = cyclicDecrement(tail);
+        E e = itemAt(last);
+        if (timestamps != null)
+            residenceTimes.recordSerialized(System.nanoTime() - timestamps[last]);
+        removeAt(last);
+        return e;
+    }
+
+    private void awaitNotEmpty() throws InterruptedException {
+        notEmptyWaiters++;
+        try {
+            if (signalDelayNanos > 0)
+                notEmpty.awaitNanos(signalDelayNanos);
+            else
+                notEmpty.await();
+        } finally {
+            notEmptyWaiters--;
+        }
+    }
+
+    private long awaitNotEmpty(long nanosTimeout) throws InterruptedException {
+        notEmptyWaiters++;
+        try {
+            if (signalDelayNanos > 0 && nanosTimeout > signalDelayNanos)
+                return nanosTimeout - signalDelayNanos + notEmpty.awaitNanos(signalDelayNanos);
+            return notEmpty.awaitNanos(nanosTimeout);
+        } finally {
+            notEmptyWaiters--;
+        }
+    }
+
+    /*
+    Called by offer with lock held
+     */
+    private void signalNotEmpty() {
+        if (notEmptyWaiters == 0) {
+            unsignalledOffers = 0;
+            return;
+        }
+        int signals = 1;
+        if (signalBatch > 1) {
+            long now = System.nanoTime();
+            if (unsignalledOffers++ == 0)
+                firstUnsignalledOfferNanos = now;
+            if (unsignalledOffers < signalBatch && now - firstUnsignalledOfferNanos < signalDelayNanos)
+                return;
+            signals = Math.min(unsignalledOffers, notEmptyWaiters);
+            unsignalledOffers = 0;
+        }
+        for (int i = 0; i < signals; i++)
+            notEmpty.signal();
+    }
+
+    void addSelectionKey(QueueSelector.Key key) {
+        lock.lock();
+        try {
+            QueueSelector.Key[] keys = selectionKeys;
+            if (keys == null) {
+                selectionKeys = new QueueSelector.Key[]{key};
+            } else {
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = key;
+                selectionKeys = keys;
+            }
+            if (headSequence != tailSequence)
+                key.markReady();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void removeSelectionKey(QueueSelector.Key key) {
+        lock.lock();
+        try {
+            QueueSelector.Key[] keys = selectionKeys;
+            if (keys == null)
+                return;
+            List<QueueSelector.Key> remaining = new ArrayList<>(Arrays.asList(keys));
+            remaining.remove(key);
+            selectionKeys = remaining.isEmpty() ? null : remaining.toArray(new QueueSelector.Key[0]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notifySelectors() {
+        for (QueueSelector.Key key : selectionKeys)
+            key.markReady();
+    }
+
+    private long beginWrite() {
+        return snapshotLock == null ? 0L : snapshotLock.writeLock();
+    }
+
+    private void endWrite(long stamp) {
+        if (stamp != 0L)
+            snapshotLock.unlockWrite(stamp);
+    }
+
+    private void publishHead(long sequence) {
+        HEAD_SEQUENCE.lazySet(this, sequence);
+    }
+
+    private void publishTail(long sequence) {
+        TAIL_SEQUENCE.lazySet(this, sequence);
+    }
+
+    private Object element(int index) {
+        Object[] chunk = chunks[index >>> CHUNK_SHIFT];
+        return chunk == null ? null : chunk[index & CHUNK_MASK];
+    }
+
+    private void setElement(int index, Object e) {
+        Object[] chunk = chunks[index >>> CHUNK_SHIFT];
+        if (chunk == null) {
+            if (e == null)
+                return;
+            int length = Math.min(CHUNK_SIZE, capacity - (index & ~CHUNK_MASK));
+            chunks[index >>> CHUNK_SHIFT] = chunk = new Object[length];
+            allocatedSlots += length;
+        }
+        chunk[index & CHUNK_MASK] = e;
+    }
+
+    /*
+    Copies n slots starting at ring index from to dst, wrapping around the end of the ring.
+    Missing chunks copy as nulls, so lock-free snapshot can use it on chunks it read without the lock.
+     */
+    private void copyOut(Object[][] chunks, int from, Object[] dst, int offset, int n) {
+        while (n > 0) {
+            int length = Math.min(n, Math.min(capacity - from, CHUNK_SIZE - (from & CHUNK_MASK)));
+            Object[] chunk = chunks[from >>> CHUNK_SHIFT];
+            if (chunk != null)
+                System.arraycopy(chunk, from & CHUNK_MASK, dst, offset, length);
+            offset += length;
+            n -= length;
+            from += length;
+            if (from == capacity)
+                from = 0;
+        }
+    }
+
+    private void clearSlots(int from, int n) {
+        while (n > 0) {
+            int length = Math.min(n, Math.min(capacity - from, CHUNK_SIZE - (from & CHUNK_MASK)));
+            Object[] chunk = chunks[from >>> CHUNK_SHIFT];
+            if (chunk != null)
+                Arrays.fill(chunk, from & CHUNK_MASK, (from & CHUNK_MASK) + length, null);
+            n -= length;
+            from += length;
+            if (from == capacity)
+                from = 0;
+        }
+    }
+
+    /*
+    Called by the idle check, releases chunks unless occupancy got high since the previous check
+     */
+    private void releaseIdleChunks() {
+        lock.lock();
+        try {
+            if (occupancyHigh)
+                occupancyHigh = false;
+            else
+                releaseChunks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Called with lock held. Releases chunks outside the elements between head and tail, they only hold nulls.
+     */
+    private int releaseChunks() {
+        int count = count();
+        // live slots are [head, liveEnd), plus [0, liveEnd - capacity) when they wrap
+        long liveEnd = (long) head + count;
+        int released = 0;
+        long stamp = beginWrite();
+        for (int c = 0; c < chunks.length; c++) {
+            Object[] chunk = chunks[c];
+            if (chunk == null)
+                continue;
+            int from = c << CHUNK_SHIFT;
+            int to = from + chunk.length;
+            boolean live = count > 0 && (from < liveEnd && to > head || from < liveEnd - capacity);
+            if (!live) {
+                chunks[c] = null;
+                released += chunk.length;
+            }
+        }
+        allocatedSlots -= released;
+        endWrite(stamp);
+        return released;
+    }
+
+    private int index(long sequence) {
+        return mask >= 0 ? (int) sequence & mask : (int) (sequence % capacity);
+    }
+
+    private int count() {
+        return (int) (tailSequence - headSequence);
+    }
+
     private int cyclicIncrement(int index) {
-        return ++index == elements.length ? 0 : index;
+        return mask >= 0 ? (index + 1) & mask : (++index == capacity ? 0 : index);
+    }
+
+    private int cyclicDecrement(int index) {
+        return mask >= 0 ? (index - 1) & mask : (index == 0 ? capacity : index) - 1;
+    }
+
+
+    /*
+    Daemon thread firing async take timeouts and idle checks of all queues, started on first use
+     */
+    private static final class SharedTimer {
+
+        static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "MostRecentlyInsertedBlockingQueue-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /*
+    Periodic idle release. Holds the queue weakly, once the queue is collected the check cancels itself.
+     */
+    private static final class IdleCheck implements Runnable {
+
+        private final WeakReference<MostRecentlyInsertedBlockingQueue<?>> queue;
+
+        volatile ScheduledFuture<?> future;
+
+        IdleCheck(MostRecentlyInsertedBlockingQueue<?> queue) {
+            this.queue = new WeakReference<>(queue);
+        }
+
+        @Override
+        public void run() {
+            MostRecentlyInsertedBlockingQueue<?> queue = this.queue.get();
+            if (queue != null)
+                queue.releaseIdleChunks();
+            else if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    /*
+    Thread parked in take or timed poll. Whoever moves it out of WAITING first decides the outcome:
+    an offer handing it an element, or the thread giving up on interrupt or timeout.
+    The item is written before the state, so a thread that sees MATCHED sees the item.
+     */
+    static final class TakeWaiter {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<TakeWaiter> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(TakeWaiter.class, "state");
+
+        private static final int WAITING = 0;
+        private static final int MATCHED = 1;
+        private static final int CANCELLED = 2;
+
+        final Thread thread;
+
+        private volatile int state;
+
+        Object item;
+
+        /**
+         * Next waiter matched by the same bulk hand-off
+         */
+        TakeWaiter next;
+
+        TakeWaiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        static void unparkAll(TakeWaiter waiter) {
+            while (waiter != null) {
+                TakeWaiter next = waiter.next;
+                waiter.next = null;
+                LockSupport.unpark(waiter.thread);
+                waiter = next;
+            }
+        }
+
+        boolean match() {
+            return STATE.compareAndSet(this, WAITING, MATCHED);
+        }
+
+        boolean cancel() {
+            return STATE.compareAndSet(this, WAITING, CANCELLED);
+        }
+
+        boolean isMatched() {
+            return state == MATCHED;
+        }
     }
 
+    /*
+    Future returned by pollAsync and takeBatchAsync.
+    Whoever moves it out of WAITING first decides the outcome: a producer assigning elements to it,
+    cancel, timeout or an external complete. So once elements are assigned the future can no longer be
+    cancelled, and elements are never lost to a cancelled one.
+     */
+    static final class AsyncTake<T> extends CompletableFuture<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<AsyncTake> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(AsyncTake.class, "state");
+
+        private static final int WAITING = 0;
+        private static final int ASSIGNED = 1;
+        private static final int ABANDONED = 2;
+
+        private final MostRecentlyInsertedBlockingQueue<?> queue;
+
+        /**
+         * 0 for pollAsync, batch size for takeBatchAsync
+         */
+        final int max;
+
+        private final Executor executor;
+
+        private volatile int state;
+
+        /**
+         * Assigned element or list of elements, written under the queue lock
+         */
+        Object result;
+
+        /**
+         * Next take assigned by the same offer
+         */
+        AsyncTake<?> next;
+
+        ScheduledFuture<?> timeout;
+
+        AsyncTake(MostRecentlyInsertedBlockingQueue<?> queue, int max, Executor executor) {
+            this.queue = queue;
+            this.max = max;
+            this.executor = executor;
+        }
+
+        static void deliverAll(AsyncTake<?> take) {
+            while (take != null) {
+                AsyncTake<?> next = take.next;
+                take.next = null;
+                take.deliver();
+                take = next;
+            }
+        }
+
+        boolean assign() {
+            return STATE.compareAndSet(this, WAITING, ASSIGNED);
+        }
+
+        Object emptyResult() {
+            return max == 0 ? null : Collections.emptyList();
+        }
+
+        void expire() {
+            if (abandon()) {
+                result = emptyResult();
+                deliver();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void completeAssigned() {
+            super.complete((T) result);
+        }
+
+        @Override
+        public boolean complete(T value) {
+            return abandon() && super.complete(value);
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            return abandon() && super.completeExceptionally(ex);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return abandon() && super.cancel(mayInterruptIfRunning);
+        }
+
+        private void deliver() {
+            if (timeout != null)
+                timeout.cancel(false);
+            if (executor == null) {
+                completeAssigned();
+                return;
+            }
+            try {
+                executor.execute(this::completeAssigned);
+            } catch (RejectedExecutionException e) {
+                // elements are already taken from the queue, hand them over in this thread
+                completeAssigned();
+            }
+        }
+
+        private boolean abandon() {
+            if (!STATE.compareAndSet(this, WAITING, ABANDONED))
+                return false;
+            queue.removeAsyncWaiter(this);
+            if (timeout != null)
+                timeout.cancel(false);
+            return true;
+        }
+    }
 
     class Itrs {
 
@@ -499,11 +1676,38 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
          */
         void elementDequeued() {
             // assert lock.getHoldCount() == 1;
-            if (elements[head] == null)
+            if (headSequence == tailSequence)
                 queueIsEmpty();
             else if (head == 0)
                 takeIndexWrapped();
         }
+
+        /**
+         * Called whenever an interior remove (not at takeIndex) occurred.
+         * <p>
+         * Notifies all iterators, and expunges any that are now stale.
+         */
+        void removedAt(int removedIndex) {
+            // assert lock.getHoldCount() == 1;
+            for (Node o = null, p = itrsHead; p != null; ) {
+                final Itr it = p.get();
+                final Node next = p.next;
+                if (it == null || it.removedAt(removedIndex)) {
+                    // unlink p
+                    p.clear();
+                    p.next = null;
+                    if (o == null)
+                        itrsHead = next;
+                    else
+                        o.next = next;
+                } else {
+                    o = p;
+                }
+                p = next;
+            }
+            if (itrsHead == null)   // no more iterators to track
+                itrs = null;
+        }
     }
 
     private class Itr implements Iterator<E> {
@@ -564,7 +1768,7 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
             final ReentrantLock lock = MostRecentlyInsertedBlockingQueue.this.lock;
             lock.lock();
             try {
-                if (elements[head] == null) {
+                if (headSequence == tailSequence) {
                     // assert itrs == null;
                     cursor = NONE;
                     nextIndex = NONE;
@@ -598,7 +1802,7 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
 
         private int incCursor(int index) {
             // assert lock.getHoldCount() == 1;
-            if (++index == elements.length)
+            if (++index == capacity)
                 index = 0;
             if (index == tail)
                 index = NONE;
@@ -635,7 +1839,7 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
             final int prevTakeIndex = this.prevTakeIndex;
 
             if (cycles != prevCycles || takeIndex != prevTakeIndex) {
-                final int len = elements.length;
+                final int len = capacity;
                 // how far takeIndex has advanced since the previous
                 // operation of this iterator
                 long dequeues = (cycles - prevCycles) * len
@@ -783,31 +1987,101 @@ public class MostRecentlyInsertedBlockingQueue<E> extends AbstractQueue<E> imple
             }
             return false;
         }
+
+        /**
+         * Called whenever an interior remove (not at takeIndex) occurred.
+         *
+         * @return true if this iterator should be unlinked from itrs
+         */
+        boolean removedAt(int removedIndex) {
+            // assert lock.getHoldCount() == 1;
+            if (isDetached())
+                return true;
+
+            final int cycles = itrs.cycles;
+            final int takeIndex = MostRecentlyInsertedBlockingQueue.this.head;
+            final int prevCycles = this.prevCycles;
+            final int prevTakeIndex = this.prevTakeIndex;
+            final int len = capacity;
+            int cycleDiff = cycles - prevCycles;
+            if (removedIndex < takeIndex)
+                cycleDiff++;
+            final int removedDistance =
+                    (cycleDiff * len) + (removedIndex - prevTakeIndex);
+            // assert removedDistance >= 0;
+            int cursor = this.cursor;
+            if (cursor >= 0) {
+                int x = distance(cursor, prevTakeIndex, len);
+                if (x == removedDistance) {
+                    if (cursor == tail)
+                        this.cursor = cursor = NONE;
+                } else if (x > removedDistance) {
+                    // assert cursor != prevTakeIndex;
+                    this.cursor = cursor = cyclicDecrement(cursor);
+                }
+            }
+            int lastRet = this.lastRet;
+            if (lastRet >= 0) {
+                int x = distance(lastRet, prevTakeIndex, len);
+                if (x == removedDistance)
+                    this.lastRet = lastRet = REMOVED;
+                else if (x > removedDistance)
+                    this.lastRet = lastRet = cyclicDecrement(lastRet);
+            }
+            int nextIndex = this.nextIndex;
+            if (nextIndex >= 0) {
+                int x = distance(nextIndex, prevTakeIndex, len);
+                if (x == removedDistance)
+                    this.nextIndex = nextIndex = REMOVED;
+                else if (x > removedDistance)
+                    this.nextIndex = nextIndex = cyclicDecrement(nextIndex);
+            } else if (cursor < 0 && nextIndex < 0 && lastRet < 0) {
+                this.prevTakeIndex = DETACHED;
+                return true;
+            }
+            return false;
+        }
+
+        private int distance(int index, int prevTakeIndex, int length) {
+            int distance = index - prevTakeIndex;
+            if (distance < 0)
+                distance += length;
+            return distance;
+        }
     }
 
     @SuppressWarnings("unchecked")
     final E itemAt(int i) {
-        return (E) elements[i];
+        return (E) element(i);
     }
 
     void removeAt(final int removeIndex) {
+        long stamp = beginWrite();
         if (removeIndex == head) {
-            elements[head] = null;
+            setElement(head, null);
             head = cyclicIncrement(head);
+            publishHead(headSequence + 1);
+            endWrite(stamp);
             if (itrs != null)
                 itrs.elementDequeued();
         } else {
             for (int i = removeIndex; ; ) {
                 int next = cyclicIncrement(i);
                 if (next != tail) {
-                    elements[i] = elements[next];
+                    setElement(i, element(next));
+                    if (timestamps != null)
+                        timestamps[i] = timestamps[next];
                     i = next;
                 } else {
-                    elements[i] = null;
+                    setElement(i, null);
                     tail = i;
+                    publishTail(tailSequence - 1);
                     break;
                 }
             }
+            endWrite(stamp);
+            if (itrs != null)
+                itrs.removedAt(removeIndex);
         }
     }
 }
@@ -2,7 +2,15 @@ package queue;
 
 
 import java.util.*;
+import java.util.function.Predicate;
 
+/*
+Array based queue evicting the oldest element when full.
+Head and tail are tracked both as array indices and as ever increasing sequences, so size is a subtraction
+and emptiness does not depend on null slots. When capacity is a power of two indices wrap with a mask.
+In deduplicating mode offer skips an element equal to one already in the queue, so retried duplicates do not
+evict new elements, and an index of the elements updated by every insertion and removal answers contains.
+ */
 public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
     private Object[] elements;
@@ -11,27 +19,93 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
     private int tail;
 
+    /**
+     * Number of elements ever removed from the head, including evicted ones
+     */
+    private long headSequence;
+
+    /**
+     * Number of elements ever offered
+     */
+    private long tailSequence;
+
+    /**
+     * capacity - 1 if capacity is a power of two, -1 otherwise
+     */
+    private int mask;
+
+    /**
+     * Index of the elements in deduplicating mode, null otherwise
+     */
+    private DuplicateIndex elementIndex;
 
     public MostRecentlyInsertedQueue(int capacity) {
         if (capacity <= 0) {
             throw new IllegalArgumentException("Capacity should be a positive integer");
         }
         elements = new Object[capacity];
+        mask = (capacity & (capacity - 1)) == 0 ? capacity - 1 : -1;
     }
 
+    /*
+    Creates queue in deduplicating mode when deduplicate is true, with an exact hash index:
+    offer and contains cost one hash lookup.
+     */
+    public MostRecentlyInsertedQueue(int capacity, boolean deduplicate) {
+        this(capacity);
+        if (deduplicate) {
+            elementIndex = new DuplicateIndex.Exact();
+        }
+    }
+
+    /*
+    Creates queue in deduplicating mode with a counting Bloom filter as index, for capacities where a hash set
+    of the elements would take too much memory: about ten 4-bit counters per slot at 1% falsePositiveRate.
+    Answers stay exact, a false positive only costs a scan of the queue.
+     */
+    public MostRecentlyInsertedQueue(int capacity, double falsePositiveRate) {
+        this(capacity);
+        elementIndex = new DuplicateIndex.CountingBloom(capacity, falsePositiveRate);
+    }
+
+    /*
+    In deduplicating mode returns false, leaving the queue unchanged, if an equal element is already in it
+     */
     @Override
     public boolean offer(E e) {
         if (e == null) {
             throw new NullPointerException("Offered object should not be null");
         }
-        if (isFull()) {
-            head = cyclicIncrement(head);
+        if (elementIndex != null && contains(e)) {
+            return false;
         }
-        elements[tail] = e;
-        tail = cyclicIncrement(tail);
+        insert(e);
         return true;
     }
 
+    /*
+    Offers e unless an equal element is already in the queue, in any mode.
+    Goes through offer, so subclasses see every insertion. Returns whether e was inserted.
+     */
+    public boolean offerIfAbsent(E e) {
+        if (e == null) {
+            throw new NullPointerException("Offered object should not be null");
+        }
+        // deduplicating offer already checks
+        if (elementIndex == null && contains(e)) {
+            return false;
+        }
+        return offer(e);
+    }
+
+    /*
+    Returns false when deduplicating offer skipped e, where AbstractQueue.add would throw
+     */
+    @Override
+    public boolean add(E e) {
+        return offer(e);
+    }
+
     @Override
     public E poll() {
         if (isEmpty()) {
@@ -41,6 +115,11 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         E headElement = (E) elements[head];
         elements[head] = null;
         head = cyclicIncrement(head);
+        headSequence++;
+        if (elementIndex != null) {
+            elementIndex.remove(headElement);
+        }
+        oldestRemoved(headElement, headSequence - 1);
         return headElement;
     }
 
@@ -54,6 +133,63 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         return headElement;
     }
 
+    /*
+    Newest element, null if queue is empty
+     */
+    public E peekLatest() {
+        if (isEmpty()) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        E latest = (E) elements[cyclicDecrement(tail)];
+        return latest;
+    }
+
+    /*
+    Removes and returns newest element, null if queue is empty
+     */
+    public E pollLatest() {
+        if (isEmpty()) {
+            return null;
+        }
+        tail = cyclicDecrement(tail);
+        @SuppressWarnings("unchecked")
+        E latest = (E) elements[tail];
+        elements[tail] = null;
+        tailSequence--;
+        if (elementIndex != null) {
+            elementIndex.remove(latest);
+        }
+        return latest;
+    }
+
+    /*
+    Removes up to maxElements newest elements and adds them to c, oldest of them first.
+    Older elements stay in the queue.
+     */
+    public int drainLatest(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this || maxElements <= 0) {
+            throw new IllegalArgumentException();
+        }
+        int n = Math.min(maxElements, size());
+        int i = tail;
+        for (int k = 0; k < n; k++) {
+            i = cyclicDecrement(i);
+        }
+        for (int k = 0; k < n; k++, i = cyclicIncrement(i)) {
+            @SuppressWarnings("unchecked")
+            E e = (E) elements[i];
+            c.add(e);
+        }
+        for (int k = 0; k < n; k++) {
+            pollLatest();
+        }
+        return n;
+    }
+
     @Override
     public Iterator<E> iterator() {
         return new Iterator<E>() {
@@ -81,29 +217,125 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
     @Override
     public int size() {
-        int size = 0;
+        return (int) (tailSequence - headSequence);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return tailSequence == headSequence;
+    }
+
+    /*
+    Tests every element first, so the queue is left untouched if filter throws,
+    then compacts survivors towards the head in one pass
+     */
+    @Override
+    public boolean removeIf(Predicate<? super E> filter) {
+        Objects.requireNonNull(filter);
+        final int size = size();
+        BitSet toRemove = null;
+        for (int i = 0, index = head; i < size; i++, index = cyclicIncrement(index)) {
+            @SuppressWarnings("unchecked")
+            E e = (E) elements[index];
+            if (filter.test(e)) {
+                if (toRemove == null) {
+                    toRemove = new BitSet(size);
+                }
+                toRemove.set(i);
+            }
+        }
+        if (toRemove == null) {
+            return false;
+        }
+        int write = head;
+        for (int i = 0, read = head; i < size; i++, read = cyclicIncrement(read)) {
+            if (!toRemove.get(i)) {
+                elements[write] = elements[read];
+                write = cyclicIncrement(write);
+            } else if (elementIndex != null) {
+                elementIndex.remove(elements[read]);
+            }
+        }
+        int removed = toRemove.cardinality();
+        tail = write;
+        for (int i = 0; i < removed; i++, write = cyclicIncrement(write)) {
+            elements[write] = null;
+        }
+        tailSequence -= removed;
+        return true;
+    }
 
-        if (tail > head) {
-            size = tail - head;
-        } else if (tail == head) {
-            size = isEmpty() ? 0 : elements.length;
-        } else {
-            size = elements.length - head + tail;
+    @Override
+    public boolean remove(Object o) {
+        if (o == null || elementIndex != null && !elementIndex.mightContain(o)) {
+            return false;
         }
+        int size = size();
+        for (int i = 0, index = head; i < size; i++, index = cyclicIncrement(index)) {
+            if (o.equals(elements[index])) {
+                if (elementIndex != null) {
+                    elementIndex.remove(elements[index]);
+                }
+                // shift following elements one towards the head
+                for (int next = cyclicIncrement(index); next != tail; index = next, next = cyclicIncrement(next)) {
+                    elements[index] = elements[next];
+                }
+                elements[index] = null;
+                tail = index;
+                tailSequence--;
+                return true;
+            }
+        }
+        return false;
+    }
 
-        return size;
+    /*
+    One hash lookup with an exact index. With a Bloom filter index a scan confirms the element is there,
+    without index contains always scans.
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        if (elementIndex != null) {
+            if (!elementIndex.mightContain(o)) {
+                return false;
+            }
+            if (elementIndex.isExact()) {
+                return true;
+            }
+        }
+        int size = size();
+        for (int i = 0, index = head; i < size; i++, index = cyclicIncrement(index)) {
+            if (o.equals(elements[index])) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
-    public boolean isEmpty() {
-        return elements[head] == null;
+    public boolean removeAll(Collection<?> c) {
+        Objects.requireNonNull(c);
+        return removeIf(c::contains);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        Objects.requireNonNull(c);
+        return removeIf(e -> !c.contains(e));
     }
 
     @Override
     public void clear() {
         head = 0;
         tail = 0;
+        headSequence = tailSequence;
         Arrays.fill(elements, null);
+        if (elementIndex != null) {
+            elementIndex.clear();
+        }
     }
 
     @Override
@@ -123,11 +355,55 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         }
     }
 
+    /*
+    Called after e was inserted with the given sequence, once the oldest element it evicted was reported
+     */
+    protected void inserted(E e, long sequence) {
+    }
+
+    /*
+    Called after the oldest element e, which had the given sequence, left the queue by poll or eviction.
+    Other removals do not call it.
+     */
+    protected void oldestRemoved(E e, long sequence) {
+    }
+
+    /*
+    Sequence of the oldest element, elements have consecutive sequences from it
+     */
+    protected final long headSequence() {
+        return headSequence;
+    }
+
+    private void insert(E e) {
+        if (isFull()) {
+            @SuppressWarnings("unchecked")
+            E evicted = (E) elements[head];
+            head = cyclicIncrement(head);
+            headSequence++;
+            if (elementIndex != null) {
+                elementIndex.remove(evicted);
+            }
+            oldestRemoved(evicted, headSequence - 1);
+        }
+        elements[tail] = e;
+        tail = cyclicIncrement(tail);
+        tailSequence++;
+        if (elementIndex != null) {
+            elementIndex.add(e);
+        }
+        inserted(e, tailSequence - 1);
+    }
+
     private boolean isFull() {
-        return head == tail && !isEmpty();
+        return tailSequence - headSequence == elements.length;
     }
 
     private int cyclicIncrement(int index) {
-        return ++index == elements.length ? 0 : index;
+        return mask >= 0 ? (index + 1) & mask : (++index == elements.length ? 0 : index);
+    }
+
+    private int cyclicDecrement(int index) {
+        return mask >= 0 ? (index - 1) & mask : (index == 0 ? elements.length : index) - 1;
     }
 }
@@ -0,0 +1,131 @@
+package queue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Lets one thread wait on many MostRecentlyInsertedBlockingQueues.
+Each registered queue has a readiness flag. Offer raises the flag, enqueues the queue to the ready list
+and unparks the selecting thread, so waiting costs nothing per registered queue.
+Readiness is level triggered: queue returned by select is returned again by the next select while it is not empty.
+select should be called by one thread at a time, register, unregister and wakeup by any thread.
+ */
+public class QueueSelector {
+
+    private final ConcurrentHashMap<MostRecentlyInsertedBlockingQueue<?>, Key> keys = new ConcurrentHashMap<>();
+
+    private final ConcurrentLinkedQueue<Key> readyKeys = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Keys returned by the previous select, checked again for remaining elements
+     */
+    private final List<Key> selectedKeys = new ArrayList<>();
+
+    private volatile Thread selectingThread;
+
+    private volatile boolean wakeupPending;
+
+    public void register(MostRecentlyInsertedBlockingQueue<?> queue) {
+        Key key = new Key(queue);
+        if (keys.putIfAbsent(queue, key) == null) {
+            queue.addSelectionKey(key);
+        }
+    }
+
+    public void unregister(MostRecentlyInsertedBlockingQueue<?> queue) {
+        Key key = keys.remove(queue);
+        if (key != null) {
+            key.cancelled = true;
+            queue.removeSelectionKey(key);
+        }
+    }
+
+    public Set<MostRecentlyInsertedBlockingQueue<?>> selectNow() {
+        return collectReady();
+    }
+
+    /*
+    Waits until at least one registered queue is not empty, timeout expires or wakeup is called.
+    Returns queues that are not empty, possibly none.
+     */
+    public Set<MostRecentlyInsertedBlockingQueue<?>> select(long timeout, TimeUnit unit) throws InterruptedException {
+        Set<MostRecentlyInsertedBlockingQueue<?>> ready = collectReady();
+        if (!ready.isEmpty()) {
+            return ready;
+        }
+        long nanosTimeout = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanosTimeout;
+        selectingThread = Thread.currentThread();
+        try {
+            while (readyKeys.isEmpty() && !wakeupPending && nanosTimeout > 0) {
+                LockSupport.parkNanos(this, nanosTimeout);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                nanosTimeout = deadline - System.nanoTime();
+            }
+        } finally {
+            selectingThread = null;
+        }
+        wakeupPending = false;
+        return collectReady();
+    }
+
+    /*
+    Makes current or next select return immediately
+     */
+    public void wakeup() {
+        wakeupPending = true;
+        LockSupport.unpark(selectingThread);
+    }
+
+    private Set<MostRecentlyInsertedBlockingQueue<?>> collectReady() {
+        // flag is lowered before the emptiness check, so an offer in between raises it again.
+        // The check takes the queue lock: offers publish tail and test the flag inside it, the lock-free
+        // isEmpty could read a stale tail while such an offer still sees the flag raised
+        for (Key key : selectedKeys) {
+            key.ready.set(false);
+            if (!key.queue.isEmptyLocked())
+                key.markReady();
+        }
+        selectedKeys.clear();
+        Set<MostRecentlyInsertedBlockingQueue<?>> ready = new LinkedHashSet<>();
+        Key key;
+        while ((key = readyKeys.poll()) != null) {
+            if (!key.cancelled) {
+                ready.add(key.queue);
+                selectedKeys.add(key);
+            }
+        }
+        return ready;
+    }
+
+    final class Key {
+
+        final MostRecentlyInsertedBlockingQueue<?> queue;
+
+        final AtomicBoolean ready = new AtomicBoolean();
+
+        volatile boolean cancelled;
+
+        Key(MostRecentlyInsertedBlockingQueue<?> queue) {
+            this.queue = queue;
+        }
+
+        /*
+        Called by queue when it has elements
+         */
+        void markReady() {
+            if (!ready.get() && ready.compareAndSet(false, true)) {
+                readyKeys.offer(this);
+                LockSupport.unpark(selectingThread);
+            }
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package queue;
+
+import queue.codec.Codec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Queue keeping the last capacity elements in a memory-mapped file, shared by processes on the same host.
+Any process can offer, overwriting the oldest slot when full as MostRecentlyInsertedQueue does.
+Each instance reads with its own cursor, so every reading process sees every element that was not overwritten
+before it got to it: poll returns elements oldest first, peekLatest the newest, dropped counts the overwritten ones.
+Reads are plain loads from the mapping, no system calls and no writes to shared memory.
+
+Layout: header with geometry and the tail sequence on its own cache line, then capacity fixed-size slots of
+[stamp long][length int][record]. A slot's stamp is a per-slot seqlock, 2 * sequence + 1 while the writer fills it,
+2 * sequence + 2 once complete. Readers copy the record and accept it only if the stamp was the expected one
+before and after the copy.
+
+Java 8 has no VarHandle fences, so shared memory accesses are ordered by Unsafe.loadFence and storeFence,
+looked up reflectively since sun.misc is not part of the API compiled against. The producer store-fences before
+publishing a stamp or the tail, readers load-fence after reading the tail or a stamp and before validating it.
+Fences only constrain the calling thread, so readers write nothing, shared or not.
+All longs are 8 byte aligned within the page aligned mapping, so their loads and stores are single copy atomic.
+In single producer mode the caller guarantees that one thread in all processes offers. In multi producer mode
+offers are serialized by a lock within the process, shared by all instances mapping the same file since file locks
+are held per process, and a file lock across processes. Only producers pay the system call.
+Reading methods of one instance are meant for one thread, like its cursor.
+ */
+public class SharedMemoryMostRecentlyInsertedQueue<E> extends AbstractQueue<E> implements Closeable {
+
+    private static final int MAGIC = 0x4d524951;
+
+    private static final int VERSION = 1;
+
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int SLOT_SIZE_OFFSET = 12;
+
+    private static final int TAIL_OFFSET = 64;
+
+    private static final int HEADER_LENGTH = 128;
+
+    private static final int SLOT_HEADER_LENGTH = 12;
+
+    /**
+     * Unsafe.loadFence and storeFence bound to the Unsafe instance, constant so the JIT inlines them to the intrinsics
+     */
+    private static final MethodHandle LOAD_FENCE;
+
+    private static final MethodHandle STORE_FENCE;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            MethodType fence = MethodType.methodType(void.class);
+            LOAD_FENCE = MethodHandles.lookup().findVirtual(unsafeClass, "loadFence", fence).bindTo(unsafe);
+            STORE_FENCE = MethodHandles.lookup().findVirtual(unsafeClass, "storeFence", fence).bindTo(unsafe);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Producer locks by canonical file path, so that within a process only one thread at a time asks for the
+     * file lock, which the JVM would otherwise refuse as overlapping. Entries live as long as the process.
+     */
+    private static final ConcurrentHashMap<String, ReentrantLock> PRODUCER_LOCKS = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Views of the mapping for bulk copies of records, one for the producing side and one for the reading side
+     */
+    private final ByteBuffer writeView;
+
+    private final ByteBuffer readView;
+
+    private final Codec<E> codec;
+
+    private final int capacity;
+
+    private final int slotSize;
+
+    private final int slotStride;
+
+    /**
+     * Serializes offers in multi producer mode, shared by instances on the same file, null in single producer mode
+     */
+    private final ReentrantLock producerLock;
+
+    /**
+     * Reused encoding buffer, records are encoded before the slot is claimed so a failing codec leaves no trace
+     */
+    private final ByteBuffer encoded;
+
+    /**
+     * Sequence of the next element this instance reads
+     */
+    private long cursor;
+
+    private long dropped;
+
+    /*
+    Maps file, creating and initializing it if it does not exist or is empty.
+    An existing file should have been created with the same capacity and slotSize.
+    slotSize is the largest encoded record in bytes.
+    Reading starts at the oldest element still in the file.
+     */
+    public SharedMemoryMostRecentlyInsertedQueue(File file, int capacity, int slotSize, Codec<E> codec,
+                                                 boolean multiProducer) throws IOException {
+        if (capacity <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("Capacity and slot size should be positive integers");
+        }
+        if (codec == null) {
+            throw new NullPointerException();
+        }
+        this.codec = codec;
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        slotStride = (SLOT_HEADER_LENGTH + slotSize + 7) & ~7;
+        long length = HEADER_LENGTH + (long) capacity * slotStride;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapping is limited to 2GB");
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock initializationLock = channel.lock();
+            try {
+                // the first process to get here initializes, others wait on the lock and validate
+                boolean created = channel.size() == 0;
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                buffer.order(ByteOrder.nativeOrder());
+                if (created) {
+                    buffer.putInt(CAPACITY_OFFSET, capacity);
+                    buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+                    buffer.putInt(4, VERSION);
+                    storeFence();
+                    buffer.putInt(0, MAGIC);
+                } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(CAPACITY_OFFSET) != capacity || buffer.getInt(SLOT_SIZE_OFFSET) != slotSize) {
+                    throw new IllegalArgumentException(file + " is not a queue of capacity " + capacity
+                            + " and slot size " + slotSize);
+                }
+            } finally {
+                initializationLock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        writeView = buffer.duplicate();
+        readView = buffer.duplicate();
+        producerLock = multiProducer
+                ? PRODUCER_LOCKS.computeIfAbsent(file.getCanonicalPath(), path -> new ReentrantLock())
+                : null;
+        encoded = ByteBuffer.allocate(slotSize).order(ByteOrder.nativeOrder());
+        cursor = Math.max(0, tail() - capacity);
+    }
+
+    /*
+    Throws IllegalArgumentException if the encoded element does not fit in a slot
+     */
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException("Offered object should not be null");
+        }
+        if (producerLock == null) {
+            write(e);
+            return true;
+        }
+        producerLock.lock();
+        try {
+            FileLock tailLock = channel.lock(TAIL_OFFSET, 8, false);
+            try {
+                write(e);
+            } finally {
+                tailLock.release();
+            }
+            return true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            producerLock.unlock();
+        }
+    }
+
+    /*
+    Next element after the ones this instance already returned, null if there is none.
+    Elements overwritten before they were read are skipped and counted by dropped.
+     */
+    @Override
+    public E poll() {
+        while (true) {
+            long tail = tail();
+            if (cursor >= tail)
+                return null;
+            if (tail - cursor > capacity) {
+                dropped += tail - capacity - cursor;
+                cursor = tail - capacity;
+            }
+            E e = read(cursor);
+            if (e != null) {
+                cursor++;
+                return e;
+            }
+            // slot is being overwritten, skip it rather than wait for a writer that may have died
+            if (overwritten(cursor)) {
+                cursor++;
+                dropped++;
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        long sequence = cursor;
+        while (true) {
+            long tail = tail();
+            sequence = Math.max(sequence, tail - capacity);
+            if (sequence >= tail)
+                return null;
+            E e = read(sequence);
+            if (e != null)
+                return e;
+            if (overwritten(sequence))
+                sequence++;
+        }
+    }
+
+    /*
+    Newest element, null if none was offered yet. Does not move the cursor.
+    With capacity 1 also null while the next element is being written over the newest one,
+    the writer may have died and the slot never be completed.
+     */
+    public E peekLatest() {
+        while (true) {
+            long tail = tail();
+            if (tail == 0)
+                return null;
+            E e = read(tail - 1);
+            if (e != null)
+                return e;
+            // tail moved: a newer element was published, read that one
+            if (tail() == tail)
+                return null;
+        }
+    }
+
+    /*
+    Number of elements this instance missed because they were overwritten before it read them
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /*
+    Number of elements this instance has not read yet
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(tail() - cursor, capacity);
+    }
+
+    /*
+    Skips all elements offered so far
+     */
+    @Override
+    public void clear() {
+        cursor = tail();
+    }
+
+    /*
+    Weakly consistent, elements overwritten during iteration are skipped. Does not move the cursor
+    and does not support removal.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            long sequence = cursor;
+
+            E next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    long tail = tail();
+                    sequence = Math.max(sequence, tail - capacity);
+                    if (sequence >= tail)
+                        return false;
+                    next = read(sequence);
+                    if (next != null || overwritten(sequence))
+                        sequence++;
+                }
+                return true;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                E e = next;
+                next = null;
+                return e;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping stays valid until garbage collected, Java 8 has no public way to unmap it
+        channel.close();
+    }
+
+    private void write(E e) {
+        encoded.clear();
+        try {
+            codec.encode(e, encoded);
+        } catch (BufferOverflowException ex) {
+            throw new IllegalArgumentException("Encoded element is larger than slot size " + slotSize, ex);
+        }
+        encoded.flip();
+        long sequence = tail();
+        int slot = slot(sequence);
+        buffer.putLong(slot, 2 * sequence + 1);
+        storeFence();
+        buffer.putInt(slot + 8, encoded.remaining());
+        writeView.clear();
+        writeView.position(slot + SLOT_HEADER_LENGTH);
+        writeView.put(encoded);
+        storeFence();
+        buffer.putLong(slot, 2 * sequence + 2);
+        storeFence();
+        buffer.putLong(TAIL_OFFSET, sequence + 1);
+    }
+
+    /*
+    Element with the given sequence, null if its slot was overwritten before or during the read
+     */
+    private E read(long sequence) {
+        int slot = slot(sequence);
+        long stamp = 2 * sequence + 2;
+        if (buffer.getLong(slot) != stamp)
+            return null;
+        loadFence();
+        int length = buffer.getInt(slot + 8);
+        if (length < 0 || length > slotSize)
+            return null;
+        byte[] record = new byte[length];
+        readView.clear();
+        readView.position(slot + SLOT_HEADER_LENGTH);
+        readView.get(record);
+        loadFence();
+        if (buffer.getLong(slot) != stamp)
+            return null;
+        return codec.decode(ByteBuffer.wrap(record).order(ByteOrder.nativeOrder()));
+    }
+
+    /*
+    Stamps of a slot only grow, a larger one means a later sequence has claimed it
+     */
+    private boolean overwritten(long sequence) {
+        return buffer.getLong(slot(sequence)) > 2 * sequence + 2;
+    }
+
+    private long tail() {
+        long tail = buffer.getLong(TAIL_OFFSET);
+        loadFence();
+        return tail;
+    }
+
+    private int slot(long sequence) {
+        return HEADER_LENGTH + (int) (sequence % capacity) * slotStride;
+    }
+
+    /*
+    Loads before the fence are not reordered with loads and stores after it
+     */
+    private static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /*
+    Loads and stores before the fence are not reordered with stores after it
+     */
+    private static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package queue;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/*
+Last capacity samples with aggregates maintained on every offer, poll and eviction, so queries do not scan the window.
+Sum and mean are O(1) per update, compensated against rounding drift.
+Min and max use monotonic deques, O(1) amortized per update.
+Quantiles come from a log-bucketed sketch with relative error relativeAccuracy, O(1) per update.
+All aggregates are NaN when the window is empty. NaN and infinite samples are rejected before the queue changes.
+Removing other than the oldest sample (pollLatest, drainLatest, remove, removeIf) costs O(n).
+ */
+public class WindowedAggregateQueue extends MostRecentlyInsertedQueue<Double> {
+
+    private double sum;
+
+    private double sumCompensation;
+
+    private final MonotonicDeque minDeque;
+
+    private final MonotonicDeque maxDeque;
+
+    private final QuantileSketch sketch;
+
+    public WindowedAggregateQueue(int capacity) {
+        this(capacity, 0.01);
+    }
+
+    public WindowedAggregateQueue(int capacity, double relativeAccuracy) {
+        super(capacity);
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy should be in (0, 1)");
+        }
+        minDeque = new MonotonicDeque(capacity, true);
+        maxDeque = new MonotonicDeque(capacity, false);
+        sketch = new QuantileSketch(relativeAccuracy);
+    }
+
+    @Override
+    public boolean offer(Double e) {
+        if (e == null) {
+            throw new NullPointerException("Offered object should not be null");
+        }
+        double value = e;
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException("Non-finite sample " + value + " is not supported");
+        }
+        // aggregates follow through inserted and oldestRemoved
+        return super.offer(e);
+    }
+
+    /*
+    O(n): samples dropped from min and max deques by the newest one may become extremes again
+     */
+    @Override
+    public Double pollLatest() {
+        Double e = super.pollLatest();
+        if (e != null) {
+            rebuild();
+        }
+        return e;
+    }
+
+    /*
+    O(n), aggregates are rebuilt
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (super.remove(o)) {
+            rebuild();
+            return true;
+        }
+        return false;
+    }
+
+    /*
+    O(n), aggregates are rebuilt. Also used by removeAll and retainAll.
+     */
+    @Override
+    public boolean removeIf(Predicate<? super Double> filter) {
+        if (super.removeIf(filter)) {
+            rebuild();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        sum = 0;
+        sumCompensation = 0;
+        minDeque.clear();
+        maxDeque.clear();
+        sketch.clear();
+    }
+
+    public double sum() {
+        return isEmpty() ? Double.NaN : sum + sumCompensation;
+    }
+
+    public double mean() {
+        return sum() / size();
+    }
+
+    public double min() {
+        return isEmpty() ? Double.NaN : minDeque.first();
+    }
+
+    public double max() {
+        return isEmpty() ? Double.NaN : maxDeque.first();
+    }
+
+    /*
+    Approximate q-quantile, 0 <= q <= 1, within relativeAccuracy of the exact value
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile should be in [0, 1]");
+        }
+        return isEmpty() ? Double.NaN : sketch.quantile((long) (q * (size() - 1)));
+    }
+
+    @Override
+    protected void inserted(Double e, long sequence) {
+        double value = e;
+        accumulate(value);
+        minDeque.push(sequence, value);
+        maxDeque.push(sequence, value);
+        sketch.add(value, 1);
+    }
+
+    @Override
+    protected void oldestRemoved(Double e, long sequence) {
+        double value = e;
+        if (isEmpty()) {
+            // window empty, drop accumulated rounding error
+            sum = 0;
+            sumCompensation = 0;
+        } else {
+            accumulate(-value);
+        }
+        minDeque.evict(sequence);
+        maxDeque.evict(sequence);
+        sketch.add(value, -1);
+    }
+
+    private void rebuild() {
+        sum = 0;
+        sumCompensation = 0;
+        minDeque.clear();
+        maxDeque.clear();
+        sketch.clear();
+        long sequence = headSequence();
+        for (Double sample : this) {
+            accumulate(sample);
+            minDeque.push(sequence, sample);
+            maxDeque.push(sequence, sample);
+            sketch.add(sample, 1);
+            sequence++;
+        }
+    }
+
+    /*
+    Neumaier compensated summation
+     */
+    private void accumulate(double value) {
+        double t = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            sumCompensation += (sum - t) + value;
+        } else {
+            sumCompensation += (value - t) + sum;
+        }
+        sum = t;
+    }
+
+    /*
+    Ring of (sequence, value) pairs with values monotonic from first to last,
+    first is the minimum (or maximum) of the window
+     */
+    private static final class MonotonicDeque {
+
+        private final long[] sequences;
+
+        private final double[] values;
+
+        private final boolean min;
+
+        private int first;
+
+        private int size;
+
+        MonotonicDeque(int capacity, boolean min) {
+            sequences = new long[capacity];
+            values = new double[capacity];
+            this.min = min;
+        }
+
+        void push(long sequence, double value) {
+            // drop samples that can never be the extreme again
+            while (size > 0) {
+                double last = values[index(size - 1)];
+                if (min ? last < value : last > value) {
+                    break;
+                }
+                size--;
+            }
+            int i = index(size++);
+            sequences[i] = sequence;
+            values[i] = value;
+        }
+
+        void evict(long sequence) {
+            if (size > 0 && sequences[first] == sequence) {
+                first = index(1);
+                size--;
+            }
+        }
+
+        double first() {
+            return values[first];
+        }
+
+        void clear() {
+            first = 0;
+            size = 0;
+        }
+
+        private int index(int offset) {
+            int i = first + offset;
+            return i >= values.length ? i - values.length : i;
+        }
+    }
+
+    /*
+    Counts per logarithmic bucket: value x > 0 falls into bucket ceil(log(x) / log(gamma)),
+    gamma = (1 + accuracy) / (1 - accuracy), negative values into a mirrored set of buckets.
+    Bucket representative is within accuracy of any value in the bucket.
+     */
+    private static final class QuantileSketch {
+
+        private static final double MIN_MAGNITUDE = 1e-12;
+
+        private final double gamma;
+
+        private final double multiplier;
+
+        private final Buckets positive = new Buckets();
+
+        private final Buckets negative = new Buckets();
+
+        private long zeroCount;
+
+        QuantileSketch(double relativeAccuracy) {
+            gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+            multiplier = 1 / Math.log(gamma);
+        }
+
+        void add(double value, int delta) {
+            if (value > MIN_MAGNITUDE) {
+                positive.add(key(value), delta);
+            } else if (value < -MIN_MAGNITUDE) {
+                negative.add(key(-value), delta);
+            } else {
+                zeroCount += delta;
+            }
+        }
+
+        double quantile(long rank) {
+            // negatives first, largest magnitude first
+            for (int k = negative.maxKey(); k >= negative.offset && negative.total > 0; k--) {
+                rank -= negative.count(k);
+                if (rank < 0) {
+                    return -value(k);
+                }
+            }
+            rank -= zeroCount;
+            if (rank < 0) {
+                return 0;
+            }
+            for (int k = positive.offset; k <= positive.maxKey(); k++) {
+                rank -= positive.count(k);
+                if (rank < 0) {
+                    return value(k);
+                }
+            }
+            return value(positive.maxKey());
+        }
+
+        void clear() {
+            positive.clear();
+            negative.clear();
+            zeroCount = 0;
+        }
+
+        private int key(double magnitude) {
+            return (int) Math.ceil(Math.log(magnitude) * multiplier);
+        }
+
+        private double value(int key) {
+            // the bucket of the largest finite values reaches past Double.MAX_VALUE
+            return Math.min(2 * Math.pow(gamma, key) / (gamma + 1), Double.MAX_VALUE);
+        }
+    }
+
+    /*
+    Dense counts for a range of keys, grown on demand
+     */
+    private static final class Buckets {
+
+        private long[] counts = new long[0];
+
+        /**
+         * Key of counts[0]
+         */
+        int offset;
+
+        long total;
+
+        void add(int key, int delta) {
+            if (counts.length == 0) {
+                counts = new long[64];
+                offset = key - 32;
+            } else if (key < offset) {
+                int grow = Math.max(offset - key, counts.length / 2);
+                long[] grown = new long[counts.length + grow];
+                System.arraycopy(counts, 0, grown, grow, counts.length);
+                counts = grown;
+                offset -= grow;
+            } else if (key >= offset + counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(key - offset + 1, counts.length + counts.length / 2));
+            }
+            counts[key - offset] += delta;
+            total += delta;
+        }
+
+        long count(int key) {
+            return counts[key - offset];
+        }
+
+        int maxKey() {
+            return offset + counts.length - 1;
+        }
+
+        void clear() {
+            Arrays.fill(counts, 0);
+            total = 0;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package queue.codec;
+
+import java.nio.ByteBuffer;
+
+/*
+Converts queue elements to and from binary records.
+encode may throw BufferOverflowException when dst has no room left, the record is then retried in a larger buffer.
+decode receives a buffer limited to exactly one record.
+ */
+public interface Codec<E> {
+
+    void encode(E value, ByteBuffer dst);
+
+    E decode(ByteBuffer src);
+}
@@ -0,0 +1,63 @@
+package queue.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+Codecs for common element types
+ */
+public final class Codecs {
+
+    public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+        @Override
+        public void encode(Integer value, ByteBuffer dst) {
+            dst.putInt(value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer src) {
+            return src.getInt();
+        }
+    };
+
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public void encode(Long value, ByteBuffer dst) {
+            dst.putLong(value);
+        }
+
+        @Override
+        public Long decode(ByteBuffer src) {
+            return src.getLong();
+        }
+    };
+
+    public static final Codec<Double> DOUBLE = new Codec<Double>() {
+        @Override
+        public void encode(Double value, ByteBuffer dst) {
+            dst.putDouble(value);
+        }
+
+        @Override
+        public Double decode(ByteBuffer src) {
+            return src.getDouble();
+        }
+    };
+
+    public static final Codec<String> STRING = new Codec<String>() {
+        @Override
+        public void encode(String value, ByteBuffer dst) {
+            dst.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String decode(ByteBuffer src) {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private Codecs() {
+    }
+}
@@ -0,0 +1,153 @@
+package queue.codec;
+
+import java.util.Arrays;
+
+/*
+Block compressor producing LZ4 block format (sequences of literals and back references with 64K window).
+Uses a single-probe hash table, favouring speed over ratio.
+ */
+public final class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int HASH_LOG = 12;
+
+    private static final int RUN_MASK = 15;
+
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /*
+    Compresses src[0, length) into dst, which should hold at least maxCompressedLength(length) bytes.
+    Returns compressed length.
+     */
+    public int compress(byte[] src, int length, byte[] dst) {
+        int anchor = 0;
+        int op = 0;
+        if (length > MF_LIMIT) {
+            Arrays.fill(hashTable, -1);
+            int matchLimit = length - LAST_LITERALS;
+            int ip = 0;
+            while (ip < length - MF_LIMIT) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = hashTable[h];
+                hashTable[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeLastLiterals(dst, op, src, anchor, length - anchor);
+    }
+
+    /*
+    Decompresses src[offset, offset + length) into dst. Returns decompressed length.
+     */
+    public static int decompress(byte[] src, int offset, int length, byte[] dst) {
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (ip + literals > end || op + literals > dst.length) {
+                throw new IllegalArgumentException("Malformed block: literals out of bounds");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                return op;
+            }
+            int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - matchOffset;
+            if (matchOffset == 0 || ref < 0 || op + matchLength > dst.length) {
+                throw new IllegalArgumentException("Malformed block: match out of bounds");
+            }
+            // byte by byte, match may overlap the bytes being produced
+            for (int i = 0; i < matchLength; i++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+        throw new IllegalArgumentException("Malformed block: missing last literals");
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalsStart, int literals,
+                                     int matchOffset, int matchLength) {
+        int tokenIndex = op++;
+        int matchRun = matchLength - MIN_MATCH;
+        dst[tokenIndex] = (byte) (Math.min(literals, RUN_MASK) << 4 | Math.min(matchRun, RUN_MASK));
+        op = writeRunLength(dst, op, literals);
+        System.arraycopy(src, literalsStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) matchOffset;
+        dst[op++] = (byte) (matchOffset >>> 8);
+        return writeRunLength(dst, op, matchRun);
+    }
+
+    private static int writeLastLiterals(byte[] dst, int op, byte[] src, int literalsStart, int literals) {
+        dst[op++] = (byte) (Math.min(literals, RUN_MASK) << 4);
+        op = writeRunLength(dst, op, literals);
+        System.arraycopy(src, literalsStart, dst, op, literals);
+        return op + literals;
+    }
+
+    private static int writeRunLength(byte[] dst, int op, int length) {
+        if (length >= RUN_MASK) {
+            int remaining = length - RUN_MASK;
+            while (remaining >= 255) {
+                dst[op++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[op++] = (byte) remaining;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
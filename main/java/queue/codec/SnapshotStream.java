@@ -0,0 +1,291 @@
+package queue.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+Binary snapshot format of queue contents.
+
+Header: int magic, byte version, byte flags, int element count.
+Followed by blocks: int raw length, int stored length, stored bytes. Block with raw length 0 ends the stream.
+Block holds length-prefixed records, records never span blocks.
+Stored length differs from raw length only when the block is LZ4 compressed.
+Blocks grow past BLOCK_SIZE only for a record that does not fit an empty block, never past MAX_BLOCK_SIZE,
+so a reader rejects a larger raw length before allocating for it.
+
+Buffers are reused per thread, so periodic checkpoints do not allocate direct memory each time.
+ */
+public final class SnapshotStream {
+
+    private static final int MAGIC = 0x4D524951;
+
+    private static final byte VERSION = 1;
+
+    private static final byte FLAG_COMPRESSED = 1;
+
+    private static final int HEADER_LENGTH = 10;
+
+    private static final int FRAME_HEADER_LENGTH = 8;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private SnapshotStream() {
+    }
+
+    /*
+    Writes values in order. Values are expected to be non-null elements of E.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> void write(WritableByteChannel channel, Object[] values, Codec<E> codec, boolean compress)
+            throws IOException {
+        Buffers buffers = BUFFERS.get();
+        ByteBuffer io = buffers.io;
+        io.clear();
+        io.putInt(MAGIC).put(VERSION).put(compress ? FLAG_COMPRESSED : 0).putInt(values.length);
+        writeFully(channel, io);
+
+        ByteBuffer block = buffers.block;
+        block.clear();
+        for (Object value : values) {
+            int recordStart = block.position();
+            if (!tryEncode(codec, (E) value, block)) {
+                block.position(recordStart);
+                flushBlock(channel, buffers, compress);
+                block = buffers.block;
+                while (!tryEncode(codec, (E) value, block)) {
+                    block = buffers.growBlock();
+                }
+            }
+        }
+        flushBlock(channel, buffers, compress);
+        io = buffers.io;
+        io.clear();
+        io.putInt(0).putInt(0);
+        writeFully(channel, io);
+    }
+
+    /*
+    Receives elements decoded by read, element i of the snapshot at slot i % capacity
+     */
+    public interface Slots {
+        void set(int slot, Object value);
+    }
+
+    /*
+    Reads a snapshot into ring in a single pass, element i lands at ring[i % ring.length],
+    so only the last ring.length elements are retained.
+    Returns total number of elements in the snapshot.
+     */
+    public static <E> int read(ReadableByteChannel channel, Codec<? extends E> codec, Object[] ring)
+            throws IOException {
+        return read(channel, codec, ring.length, (slot, value) -> ring[slot] = value);
+    }
+
+    /*
+    Reads a snapshot in a single pass, handing element i to slots at i % capacity,
+    so callers can place elements without a ring of capacity slots up front.
+    Slots only sees elements actually decoded, the count in the header is checked at the end, never trusted.
+    Returns total number of elements in the snapshot.
+     */
+    public static <E> int read(ReadableByteChannel channel, Codec<? extends E> codec, int capacity, Slots slots)
+            throws IOException {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        Buffers buffers = BUFFERS.get();
+        ByteBuffer io = buffers.io;
+        io.clear().limit(HEADER_LENGTH);
+        readFully(channel, io);
+        io.flip();
+        if (io.getInt() != MAGIC) {
+            throw new StreamCorruptedException("Not a queue snapshot");
+        }
+        if (io.get() != VERSION) {
+            throw new StreamCorruptedException("Unsupported snapshot version");
+        }
+        boolean compressed = (io.get() & FLAG_COMPRESSED) != 0;
+        int expectedCount = io.getInt();
+
+        int count = 0;
+        int slot = 0;
+        while (true) {
+            io = buffers.io;
+            io.clear().limit(FRAME_HEADER_LENGTH);
+            readFully(channel, io);
+            io.flip();
+            int rawLength = io.getInt();
+            int storedLength = io.getInt();
+            if (rawLength == 0) {
+                break;
+            }
+            if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE
+                    || storedLength < 0 || storedLength > Lz4Block.maxCompressedLength(rawLength)
+                    || (!compressed && storedLength != rawLength)) {
+                throw new StreamCorruptedException("Corrupted block header");
+            }
+            ByteBuffer records = readBlock(channel, buffers, rawLength, storedLength);
+            while (records.hasRemaining()) {
+                int recordLength = records.getInt();
+                if (recordLength < 0 || recordLength > records.remaining()) {
+                    throw new StreamCorruptedException("Corrupted record length");
+                }
+                int recordEnd = records.position() + recordLength;
+                ByteBuffer record = records.duplicate();
+                record.limit(recordEnd);
+                slots.set(slot, codec.decode(record));
+                if (++slot == capacity) {
+                    slot = 0;
+                }
+                count++;
+                records.position(recordEnd);
+            }
+        }
+        if (count != expectedCount) {
+            throw new StreamCorruptedException("Expected " + expectedCount + " elements but read " + count);
+        }
+        return count;
+    }
+
+    private static <E> boolean tryEncode(Codec<E> codec, E value, ByteBuffer block) {
+        if (block.remaining() < 4) {
+            return false;
+        }
+        int lengthIndex = block.position();
+        block.position(lengthIndex + 4);
+        try {
+            codec.encode(value, block);
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+        block.putInt(lengthIndex, block.position() - lengthIndex - 4);
+        return true;
+    }
+
+    private static void flushBlock(WritableByteChannel channel, Buffers buffers, boolean compress) throws IOException {
+        ByteBuffer block = buffers.block;
+        int rawLength = block.position();
+        if (rawLength == 0) {
+            return;
+        }
+        byte[] payload = block.array();
+        int storedLength = rawLength;
+        if (compress) {
+            byte[] compressed = buffers.compressed(rawLength);
+            int compressedLength = buffers.lz4.compress(payload, rawLength, compressed);
+            // incompressible blocks are stored as is and told apart by equal lengths
+            if (compressedLength < rawLength) {
+                payload = compressed;
+                storedLength = compressedLength;
+            }
+        }
+        ByteBuffer io = buffers.io(FRAME_HEADER_LENGTH + storedLength);
+        io.clear();
+        io.putInt(rawLength).putInt(storedLength).put(payload, 0, storedLength);
+        writeFully(channel, io);
+        block.clear();
+    }
+
+    private static ByteBuffer readBlock(ReadableByteChannel channel, Buffers buffers, int rawLength, int storedLength)
+            throws IOException {
+        ByteBuffer io = buffers.io(storedLength);
+        io.clear().limit(storedLength);
+        readFully(channel, io);
+        io.flip();
+        byte[] stored = buffers.stored(storedLength);
+        io.get(stored, 0, storedLength);
+        if (storedLength == rawLength) {
+            return ByteBuffer.wrap(stored, 0, rawLength);
+        }
+        byte[] raw = buffers.raw(rawLength);
+        try {
+            if (Lz4Block.decompress(stored, 0, storedLength, raw) != rawLength) {
+                throw new StreamCorruptedException("Decompressed length mismatch");
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            StreamCorruptedException corrupted = new StreamCorruptedException(e.getMessage());
+            corrupted.initCause(e);
+            throw corrupted;
+        }
+        return ByteBuffer.wrap(raw, 0, rawLength);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of snapshot");
+            }
+        }
+    }
+
+    private static final class Buffers {
+
+        final Lz4Block lz4 = new Lz4Block();
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        ByteBuffer io = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + Lz4Block.maxCompressedLength(BLOCK_SIZE));
+
+        private byte[] compressed = new byte[0];
+
+        private byte[] stored = new byte[0];
+
+        private byte[] raw = new byte[0];
+
+        ByteBuffer growBlock() throws IOException {
+            if (block.capacity() >= MAX_BLOCK_SIZE) {
+                throw new IOException("Element encodes to more than " + (MAX_BLOCK_SIZE - 4) + " bytes");
+            }
+            block = ByteBuffer.allocate(block.capacity() * 2);
+            return block;
+        }
+
+        ByteBuffer io(int capacity) {
+            if (io.capacity() < capacity) {
+                io = ByteBuffer.allocateDirect(capacity);
+            }
+            return io;
+        }
+
+        byte[] compressed(int length) {
+            int required = Lz4Block.maxCompressedLength(length);
+            if (compressed.length < required) {
+                compressed = new byte[required];
+            }
+            return compressed;
+        }
+
+        byte[] stored(int length) {
+            if (stored.length < length) {
+                stored = new byte[length];
+            }
+            return stored;
+        }
+
+        byte[] raw(int length) {
+            if (raw.length < length) {
+                raw = new byte[length];
+            }
+            return raw;
+        }
+    }
+}